@@ -0,0 +1,100 @@
+package queen;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The retry policy used by all of HiveQueen's clients.
+ *
+ * On top of the usual retryable errors, this retries the "does not exist" errors EC2 returns for a short while after a
+ * resource is created, so callers don't need to sleep after launching an instance or creating an image. Requests marked
+ * with followsCreate() retry these errors for as long as any other error. Other requests only retry them a couple of
+ * times, quickly, so that a genuinely wrong id fails in about a second instead of hanging. Delays back off
+ * exponentially and are jittered between half and all of the current ceiling.
+ */
+class AdaptiveRetryPolicy {
+
+  private static final int MAX_RETRIES = 8;
+
+  private static final int MAX_NOT_FOUND_RETRIES = 3;
+
+  private static final long MAX_DELAY_MILLIS = 20_000;
+
+  private static final HandlerContextKey<Boolean> FOLLOWS_CREATE = new HandlerContextKey<>("hive:follows-create");
+
+  private static final Set<String> EVENTUAL_CONSISTENCY_ERRORS = ImmutableSet.of(
+      "InvalidInstanceID.NotFound",
+      "InvalidAMIID.NotFound",
+      "InvalidAMIID.Unavailable",
+      "InvalidSnapshot.NotFound",
+      "InvalidVolume.NotFound",
+      "InvalidGroup.NotFound",
+      "InvalidSubnetID.NotFound",
+      "InvalidVpcID.NotFound");
+
+  private static final Set<String> THROTTLING_ERRORS = ImmutableSet.of(
+      "RequestLimitExceeded",
+      "Throttling",
+      "ThrottlingException",
+      "PriorRequestNotComplete");
+
+  static RetryPolicy create() {
+    return new RetryPolicy(AdaptiveRetryPolicy::shouldRetry, AdaptiveRetryPolicy::getDelay, MAX_RETRIES, false);
+  }
+
+  /**
+   * Marks a request which refers to a resource we just created (e.g. tagging a new instance), so that "does not exist"
+   * errors are retried until EC2 catches up.
+   */
+  static <T extends AmazonWebServiceRequest> T followsCreate(T request) {
+    request.addHandlerContext(FOLLOWS_CREATE, true);
+    return request;
+  }
+
+  private static boolean isFollowingCreate(AmazonWebServiceRequest request) {
+    return request != null && Boolean.TRUE.equals(request.getHandlerContext(FOLLOWS_CREATE));
+  }
+
+  static boolean isThrottling(AmazonServiceException e) {
+    return RetryUtils.isThrottlingException(e) || THROTTLING_ERRORS.contains(e.getErrorCode());
+  }
+
+  static boolean isEventualConsistencyError(AmazonClientException e) {
+    return e instanceof AmazonServiceException
+        && EVENTUAL_CONSISTENCY_ERRORS.contains(((AmazonServiceException) e).getErrorCode());
+  }
+
+  private static boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException e, int retries) {
+    if (!(e instanceof AmazonServiceException)) {
+      return e.isRetryable();
+    }
+    AmazonServiceException ase = (AmazonServiceException) e;
+    if (isEventualConsistencyError(ase)) {
+      return isFollowingCreate(request) || retries < MAX_NOT_FOUND_RETRIES;
+    }
+    return isThrottling(ase) || RetryUtils.isRetryableServiceException(ase)
+        || RetryUtils.isClockSkewError(ase);
+  }
+
+  private static long getDelay(AmazonWebServiceRequest request, AmazonClientException e, int retries) {
+    long base;
+    if (isEventualConsistencyError(e)) {
+      base = isFollowingCreate(request) ? 1000 : 250;
+    } else if (e instanceof AmazonServiceException && isThrottling((AmazonServiceException) e)) {
+      base = 500;
+    } else {
+      base = 100;
+    }
+    long ceiling = Math.min(MAX_DELAY_MILLIS, base << Math.min(retries, 16));
+    return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+  }
+
+}
@@ -0,0 +1,206 @@
+package queen;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableMap;
+
+import ox.x.XList;
+
+/**
+ * A MetricsSink which keeps per-operation counts and latency histograms in memory. Every HiveQueen created from
+ * credentials records into one of these; see HiveQueen.getMetrics().
+ */
+public class ApiMetrics implements MetricsSink {
+
+  /**
+   * The upper bound (in millis) of each latency bucket. The last bucket catches everything slower.
+   */
+  private static final long[] BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000,
+      Long.MAX_VALUE };
+
+  private final Map<String, OperationStats> stats = new ConcurrentHashMap<>();
+
+  @Override
+  public void onCall(ApiCall call) {
+    stats.computeIfAbsent(call.getKey(), k -> new OperationStats(call.getService(), call.getOperation())).add(call);
+  }
+
+  /**
+   * A consistent copy of the current numbers, keyed by "service:Operation".
+   */
+  public Map<String, OperationSnapshot> snapshot() {
+    ImmutableMap.Builder<String, OperationSnapshot> ret = ImmutableMap.builder();
+    XList<OperationStats> sorted = XList.create(stats.values());
+    sorted.sort(Comparator.comparing(s -> s.key));
+    sorted.forEach(s -> ret.put(s.key, s.snapshot()));
+    return ret.build();
+  }
+
+  public void reset() {
+    stats.clear();
+  }
+
+  /**
+   * One line per operation, the most expensive (by total time) first.
+   */
+  @Override
+  public String toString() {
+    XList<OperationSnapshot> snapshots = XList.create(snapshot().values());
+    snapshots.sort(Comparator.comparing(OperationSnapshot::getTotalTime).reversed());
+    StringBuilder sb = new StringBuilder();
+    snapshots.forEach(s -> sb.append(s).append('\n'));
+    return sb.toString();
+  }
+
+  private static class OperationStats {
+    private final String key, service, operation;
+
+    private long calls, attempts, errors, throttles, pages, totalNanos, maxNanos;
+    private final long[] histogram = new long[BUCKETS.length];
+
+    public OperationStats(String service, String operation) {
+      this.key = service + ":" + operation;
+      this.service = service;
+      this.operation = operation;
+    }
+
+    public synchronized void add(ApiCall call) {
+      long nanos = call.getLatency().toNanos();
+      calls++;
+      attempts += call.getAttempts();
+      throttles += call.getThrottledAttempts();
+      if (call.isError()) {
+        errors++;
+      }
+      if (call.isContinuationPage()) {
+        pages++;
+      }
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+
+      long millis = call.getLatency().toMillis();
+      int i = 0;
+      while (millis > BUCKETS[i]) {
+        i++;
+      }
+      histogram[i]++;
+    }
+
+    public synchronized OperationSnapshot snapshot() {
+      return new OperationSnapshot(service, operation, calls, attempts, errors, throttles, pages,
+          Duration.ofNanos(totalNanos), Duration.ofNanos(maxNanos), histogram.clone());
+    }
+  }
+
+  public static class OperationSnapshot {
+    private final String service, operation;
+    private final long calls, attempts, errors, throttles, pages;
+    private final Duration totalTime, maxLatency;
+    private final long[] histogram;
+
+    private OperationSnapshot(String service, String operation, long calls, long attempts, long errors,
+        long throttles, long pages, Duration totalTime, Duration maxLatency, long[] histogram) {
+      this.service = service;
+      this.operation = operation;
+      this.calls = calls;
+      this.attempts = attempts;
+      this.errors = errors;
+      this.throttles = throttles;
+      this.pages = pages;
+      this.totalTime = totalTime;
+      this.maxLatency = maxLatency;
+      this.histogram = histogram;
+    }
+
+    public String getService() {
+      return service;
+    }
+
+    public String getOperation() {
+      return operation;
+    }
+
+    public long getCalls() {
+      return calls;
+    }
+
+    /**
+     * Includes retries, so this is at least getCalls().
+     */
+    public long getAttempts() {
+      return attempts;
+    }
+
+    /**
+     * Calls which failed after all retries.
+     */
+    public long getErrors() {
+      return errors;
+    }
+
+    /**
+     * Attempts which were throttled by AWS, whether or not the call eventually succeeded.
+     */
+    public long getThrottles() {
+      return throttles;
+    }
+
+    /**
+     * Calls which fetched the second or later page of a paginated result.
+     */
+    public long getPages() {
+      return pages;
+    }
+
+    public Duration getTotalTime() {
+      return totalTime;
+    }
+
+    public Duration getMeanLatency() {
+      return calls == 0 ? Duration.ZERO : totalTime.dividedBy(calls);
+    }
+
+    public Duration getMaxLatency() {
+      return maxLatency;
+    }
+
+    /**
+     * An upper bound on the given percentile (0 - 100) of latency, to the resolution of the histogram's buckets.
+     */
+    public Duration getPercentile(double percentile) {
+      long target = (long) Math.ceil(calls * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        seen += histogram[i];
+        if (seen >= target && seen > 0) {
+          return BUCKETS[i] == Long.MAX_VALUE ? maxLatency : Duration.ofMillis(BUCKETS[i]);
+        }
+      }
+      return Duration.ZERO;
+    }
+
+    /**
+     * The number of calls in each latency bucket, keyed by the bucket's upper bound in millis (Long.MAX_VALUE for the
+     * last one).
+     */
+    public Map<Long, Long> getHistogram() {
+      ImmutableMap.Builder<Long, Long> ret = ImmutableMap.builder();
+      for (int i = 0; i < histogram.length; i++) {
+        ret.put(BUCKETS[i], histogram[i]);
+      }
+      return ret.build();
+    }
+
+    @Override
+    public String toString() {
+      return service + ":" + operation + " calls=" + calls + " attempts=" + attempts + " errors=" + errors
+          + " throttles=" + throttles + " pages=" + pages + " total=" + totalTime.toMillis() + "ms mean="
+          + getMeanLatency().toMillis() + "ms p50=" + getPercentile(50).toMillis() + "ms p99="
+          + getPercentile(99).toMillis() + "ms max=" + maxLatency.toMillis() + "ms";
+    }
+  }
+
+}
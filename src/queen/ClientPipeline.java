@@ -0,0 +1,79 @@
+package queen;
+
+import static ox.util.Utils.sleep;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryPolicy;
+
+/**
+ * The request handlers and retry policy HiveQueen's own clients get, for calls which don't go through the SDK's HTTP
+ * pipeline (e.g. queen.local.LocalAws). Each call is timed and reported to a MetricsSink, every attempt waits on the
+ * service's client-side rate limit, and failed attempts are retried the way the SDK would.
+ */
+public class ClientPipeline {
+
+  private final String service;
+  private final List<RequestHandler2> handlers;
+  private volatile RetryPolicy retryPolicy = null;
+
+  /**
+   * @param service "ec2", "elasticloadbalancing" or "route53".
+   */
+  public ClientPipeline(String service, MetricsSink sink) {
+    MetricsHandler metrics = new MetricsHandler();
+    metrics.addSink(sink);
+    this.service = service;
+    this.handlers = List.of(metrics, ThrottlingHandler.forService(service));
+  }
+
+  /**
+   * Retries failed attempts with HiveQueen's retry policy. Without this, every error is returned to the caller.
+   */
+  public ClientPipeline retries(boolean retries) {
+    this.retryPolicy = retries ? AdaptiveRetryPolicy.create() : null;
+    return this;
+  }
+
+  public <T> T call(String operation, AmazonWebServiceRequest originalRequest, Supplier<T> attempt) {
+    DefaultRequest<?> request = new DefaultRequest<>(originalRequest, service);
+    request.addHandlerContext(HandlerContextKey.SIGNING_NAME, service);
+    request.addHandlerContext(HandlerContextKey.OPERATION_NAME, operation);
+    handlers.forEach(h -> h.beforeRequest(request));
+
+    for (int retries = 0;; retries++) {
+      HandlerBeforeAttemptContext before = HandlerBeforeAttemptContext.builder().withRequest(request).build();
+      handlers.forEach(h -> h.beforeAttempt(before));
+      try {
+        T ret = attempt.get();
+        afterAttempt(request, null);
+        handlers.forEach(h -> h.afterResponse(request, null));
+        return ret;
+      } catch (AmazonServiceException e) {
+        afterAttempt(request, e);
+        RetryPolicy policy = retryPolicy;
+        if (policy == null || retries >= policy.getMaxErrorRetry()
+            || !policy.getRetryCondition().shouldRetry(originalRequest, e, retries)) {
+          handlers.forEach(h -> h.afterError(request, null, e));
+          throw e;
+        }
+        sleep(policy.getBackoffStrategy().delayBeforeNextRetry(originalRequest, e, retries));
+      }
+    }
+  }
+
+  private void afterAttempt(DefaultRequest<?> request, Exception e) {
+    HandlerAfterAttemptContext after = HandlerAfterAttemptContext.builder().withRequest(request).withException(e)
+        .build();
+    handlers.forEach(h -> h.afterAttempt(after));
+  }
+
+}
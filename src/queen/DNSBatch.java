@@ -0,0 +1,164 @@
+package queen;
+
+import static ox.util.Utils.checkNotEmpty;
+import static ox.util.Utils.format;
+import static ox.util.Utils.normalize;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.RRType;
+
+import ox.Log;
+import ox.x.XList;
+
+/**
+ * Collects DNS upserts and deletes and sends them grouped by hosted zone, packing as many changes into each
+ * ChangeBatch as Route53 allows. When awaiting propagation, all of the resulting changes are waited on together.
+ *
+ * If the same record is changed more than once, only the last change is sent. Upserts which the zone's record index
+ * says wouldn't change anything aren't sent at all. To keep large batches cheap, that isn't confirmed with Route53
+ * record by record, so a record changed outside this process since its zone was loaded can be skipped wrongly until
+ * the index is reloaded; see ZoneRecordIndex.isCurrentInIndex().
+ */
+public class DNSBatch {
+
+  /**
+   * Route53 allows up to 1000 ResourceRecord elements per batch, where each UPSERT counts twice.
+   */
+  private static final int MAX_RECORDS_PER_BATCH = 1000;
+
+  private static final int MAX_VALUE_CHARS_PER_BATCH = 32000;
+
+  private final HiveQueen queen;
+  private final Map<String, PendingChange> changes = new LinkedHashMap<>();
+
+  DNSBatch(HiveQueen queen) {
+    this.queen = queen;
+  }
+
+  public DNSBatch upsert(String key, String value) {
+    value = checkNotEmpty(normalize(value), "Missing DNS value");
+    return upsert(key, value, queen.getRecordType(value));
+  }
+
+  public DNSBatch upsertARecord(String key, String value) {
+    return upsert(key, value, RRType.A);
+  }
+
+  private DNSBatch upsert(String key, String value, RRType type) {
+    key = checkNotEmpty(normalize(key), "Missing DNS key");
+    value = checkNotEmpty(normalize(value), "Missing DNS value");
+    add(new PendingChange(ChangeAction.UPSERT, key, type, value));
+    return this;
+  }
+
+  /**
+   * Deletes the A record with the given name.
+   */
+  public DNSBatch delete(String key) {
+    key = checkNotEmpty(normalize(key), "Missing DNS key");
+    add(new PendingChange(ChangeAction.DELETE, key, RRType.A, ""));
+    return this;
+  }
+
+  private void add(PendingChange change) {
+    String id = change.key.toLowerCase() + "|" + change.type;
+    changes.remove(id);
+    changes.put(id, change);
+  }
+
+  public int size() {
+    return changes.size();
+  }
+
+  /**
+   * Sends all of the changes and returns the ids of the resulting Route53 changes.
+   */
+  public XList<String> apply(boolean awaitDNSPropagation) {
+    Map<String, HostedZone> zones = new LinkedHashMap<>();
+    Map<String, List<Change>> changesByZone = new LinkedHashMap<>();
+    int skipped = 0;
+    for (PendingChange pending : changes.values()) {
+      HostedZone zone = queen.getHostedZone(pending.key);
+      Change change = pending.toChange(zone);
+      if (pending.action == ChangeAction.UPSERT
+          && queen.isDNSRecordCurrentInIndex(zone, change.getResourceRecordSet())) {
+        skipped++;
+        continue;
+      }
+      zones.put(zone.getId(), zone);
+      changesByZone.computeIfAbsent(zone.getId(), k -> XList.create()).add(change);
+    }
+    if (skipped > 0) {
+      Log.debug(format("Skipping {0} dns upserts which are already correct.", skipped));
+    }
+
+    XList<String> ret = XList.create();
+    changesByZone.forEach((zoneId, zoneChanges) -> {
+      for (List<Change> batch : split(zoneChanges)) {
+        Log.debug(format("Sending {0} dns changes to zone {1}", batch.size(), zoneId));
+        ret.add(queen.sendDNSChanges(zones.get(zoneId), batch));
+      }
+    });
+    changes.clear();
+
+    if (awaitDNSPropagation && !ret.isEmpty()) {
+      queen.awaitDNSChanges(ret);
+    }
+
+    return ret;
+  }
+
+  private XList<List<Change>> split(List<Change> zoneChanges) {
+    XList<List<Change>> ret = XList.create();
+    XList<Change> current = XList.create();
+    int records = 0, chars = 0;
+    for (Change change : zoneChanges) {
+      int changeRecords = change.getResourceRecordSet().getResourceRecords().size()
+          * (change.getAction().equals(ChangeAction.UPSERT.toString()) ? 2 : 1);
+      int changeChars = change.getResourceRecordSet().getResourceRecords().stream()
+          .mapToInt(r -> r.getValue().length()).sum();
+      if (!current.isEmpty()
+          && (records + changeRecords > MAX_RECORDS_PER_BATCH || chars + changeChars > MAX_VALUE_CHARS_PER_BATCH)) {
+        ret.add(current);
+        current = XList.create();
+        records = 0;
+        chars = 0;
+      }
+      current.add(change);
+      records += changeRecords;
+      chars += changeChars;
+    }
+    if (!current.isEmpty()) {
+      ret.add(current);
+    }
+    return ret;
+  }
+
+  private class PendingChange {
+    private final ChangeAction action;
+    private final String key;
+    private final RRType type;
+    private final String value;
+
+    public PendingChange(ChangeAction action, String key, RRType type, String value) {
+      this.action = action;
+      this.key = key;
+      this.type = type;
+      this.value = value;
+    }
+
+    public Change toChange(HostedZone zone) {
+      if (action == ChangeAction.DELETE) {
+        return new Change(action, queen.getARecord(zone, key));
+      }
+      return new Change(action, queen.createRecordSet(key, value, type));
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.Log;
+import ox.x.XList;
+
+/**
+ * Runs an operation across many instances in parallel.
+ *
+ * Instances are processed in rolling batches of batchSize. Within a batch, at most concurrency operations run at the
+ * same time. The next batch doesn't start until the previous one has finished.
+ */
+public class FleetExecutor {
+
+  private final XList<HiveInstance> instances;
+
+  private int concurrency = 10;
+  private int batchSize = Integer.MAX_VALUE;
+  private boolean stopOnFailure = false;
+
+  FleetExecutor(Iterable<HiveInstance> instances) {
+    this.instances = XList.create(instances);
+  }
+
+  /**
+   * The maximum number of operations which will run at the same time.
+   */
+  public FleetExecutor concurrency(int concurrency) {
+    checkArgument(concurrency > 0);
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  /**
+   * The number of instances per rolling batch. Defaults to all of them in a single batch.
+   */
+  public FleetExecutor batchSize(int batchSize) {
+    checkArgument(batchSize > 0);
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * If true, no further batches are started once any operation has failed.
+   */
+  public FleetExecutor stopOnFailure(boolean stopOnFailure) {
+    this.stopOnFailure = stopOnFailure;
+    return this;
+  }
+
+  public FleetResult<Void> forEach(Consumer<HiveInstance> operation) {
+    return run(instance -> {
+      operation.accept(instance);
+      return null;
+    });
+  }
+
+  public <T> FleetResult<T> run(Function<HiveInstance, T> operation) {
+    FleetResult<T> ret = new FleetResult<>();
+    if (instances.isEmpty()) {
+      return ret;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, instances.size()),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-fleet-%d").build());
+    try {
+      List<List<HiveInstance>> batches = Lists.partition(instances, Math.min(batchSize, instances.size()));
+      for (int i = 0; i < batches.size(); i++) {
+        List<HiveInstance> batch = batches.get(i);
+        if (batches.size() > 1) {
+          Log.debug("Starting fleet batch " + (i + 1) + " of " + batches.size() + " (" + batch.size() + " instances)");
+        }
+
+        XList<Future<T>> futures = XList.create();
+        batch.forEach(instance -> futures.add(executor.submit(() -> instance.getQueen().getTimelines()
+            .collectInto(ret.getTimelineReport(), () -> operation.apply(instance)))));
+
+        for (int j = 0; j < batch.size(); j++) {
+          HiveInstance instance = batch.get(j);
+          try {
+            ret.addResult(instance, futures.get(j).get());
+          } catch (ExecutionException e) {
+            Log.error("Operation failed on " + instance + ": " + e.getCause());
+            ret.addFailure(instance, e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+          }
+        }
+
+        if (stopOnFailure && !ret.isSuccess()) {
+          Log.warn("Stopping fleet operation after batch " + (i + 1) + " because of failures.");
+          break;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,248 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import ox.Log;
+import ox.x.XList;
+import ox.x.XMap;
+
+/**
+ * Compares a FleetSpec with what is actually running and makes only the changes needed to match it.
+ *
+ * Reading the live state costs one DescribeInstances per 200 names, one DescribeTargetHealth per target group and
+ * whatever it takes to load each hosted zone's record index (nothing, once it's loaded). Nothing else is called unless
+ * something differs. Instance changes (start, resize, tags) run in parallel through a FleetExecutor, missing instances
+ * are launched with one RunInstances call, DNS fix-ups are sent as one DNSBatch and target registrations as one call
+ * per target group.
+ */
+public class FleetReconciler {
+
+  private static final int MAX_NAMES_PER_DESCRIBE = 200;
+
+  private final HiveQueen queen;
+  private final FleetSpec spec;
+
+  FleetReconciler(HiveQueen queen, FleetSpec spec) {
+    this.queen = queen;
+    this.spec = spec;
+  }
+
+  /**
+   * Reads the live state and returns the changes apply() would make, without making them. An empty plan means the
+   * fleet already matches the spec.
+   */
+  public XList<String> plan() {
+    XList<String> ret = XList.create();
+    for (Node node : diff()) {
+      ret.addAll(node.describe());
+    }
+    return ret;
+  }
+
+  /**
+   * Makes the fleet match the spec. The result maps each instance to its state after the changes; instances which
+   * already matched map to themselves.
+   */
+  public FleetResult<HiveInstance> apply() {
+    XList<Node> nodes = diff();
+    FleetResult<HiveInstance> ret = new FleetResult<>();
+
+    XList<Node> missing = nodes.filter(n -> n.instance == null);
+    XList<CompletableFuture<HiveInstance>> launches = XList.create();
+    if (!missing.isEmpty()) {
+      checkState(spec.getImageId() != null && spec.getType() != null,
+          "Missing instances " + missing.map(n -> n.name) + " but the spec has no image and type to launch them.");
+      Log.info("Launching " + missing.size() + " missing instance(s).");
+      launches = queen.async().launchInstancesFromImage(missing.map(n -> n.name), spec.getType(), spec.getImageId(),
+          spec.getIamRole(), spec.getTags());
+    }
+
+    Map<String, Node> toFix = new LinkedHashMap<>();
+    for (Node node : nodes) {
+      if (node.instance == null) {
+        continue;
+      }
+      if (node.hasInstanceChanges()) {
+        toFix.put(node.instance.getId(), node);
+      } else {
+        ret.addResult(node.instance, node.instance);
+      }
+    }
+    if (!toFix.isEmpty()) {
+      FleetResult<HiveInstance> fixed = queen.fleet(XList.create(toFix.values()).map(n -> n.instance))
+          .concurrency(spec.getConcurrency())
+          .run(instance -> fix(toFix.get(instance.getId())));
+      fixed.getResults().forEach(ret::addResult);
+      fixed.getFailures().forEach(ret::addFailure);
+    }
+
+    XList<Throwable> launchFailures = XList.create();
+    for (CompletableFuture<HiveInstance> launch : launches) {
+      try {
+        HiveInstance instance = launch.join();
+        ret.addResult(instance, instance);
+      } catch (CompletionException e) {
+        launchFailures.add(e.getCause());
+      }
+    }
+
+    Map<String, Node> byName = new LinkedHashMap<>();
+    nodes.forEach(n -> byName.put(n.name, n));
+    XList<HiveInstance> current = XList.create(ret.getResults().values());
+
+    if (spec.isRoutingNames()) {
+      DNSBatch batch = queen.dnsBatch();
+      for (HiveInstance instance : current) {
+        String ip = instance.getIp();
+        Node node = byName.get(instance.getName());
+        if (node != null && !ip.isEmpty() && !ip.equals(node.record)) {
+          batch.upsertARecord(node.name, ip);
+        }
+      }
+      if (batch.size() > 0) {
+        Log.info("Updating " + batch.size() + " dns record(s).");
+        batch.apply(false);
+      }
+    }
+
+    if (spec.getLoadBalancer() != null) {
+      Set<String> registered = getRegistered();
+      XList<String> toRegister = current.map(HiveInstance::getId).filter(id -> !registered.contains(id));
+      if (!toRegister.isEmpty()) {
+        Log.info("Registering " + toRegister.size() + " target(s) with " + spec.getLoadBalancer());
+        queen.getLoadBalancer(spec.getLoadBalancer()).registerTargets(toRegister);
+      }
+    }
+
+    if (!launchFailures.isEmpty()) {
+      RuntimeException e = new RuntimeException(launchFailures.size() + " launch(es) failed.");
+      launchFailures.forEach(e::addSuppressed);
+      throw e;
+    }
+    return ret;
+  }
+
+  private HiveInstance fix(Node node) {
+    HiveInstance instance = node.instance;
+    if (!node.tags.isEmpty()) {
+      instance = instance.withTags(node.tags);
+    }
+    if (node.type != null) {
+      instance.changeInstanceType(node.type);
+    } else if (node.start) {
+      instance.start();
+    } else {
+      return instance;
+    }
+    return instance.awaitIp();
+  }
+
+  private XList<Node> diff() {
+    XList<String> names = spec.getNames();
+
+    XMap<String, XList<HiveInstance>> instancesByName = XMap.create();
+    for (List<String> chunk : Lists.partition(names, MAX_NAMES_PER_DESCRIBE)) {
+      for (HiveInstance instance : queen.getActiveInstances(new Filter("tag:Name").withValues(chunk))) {
+        instancesByName.computeIfAbsent(instance.getName(), k -> XList.create()).add(instance);
+      }
+    }
+
+    Set<String> registered = spec.getLoadBalancer() == null ? ImmutableSet.of() : getRegistered();
+
+    XList<Node> ret = XList.create();
+    for (String name : names) {
+      XList<HiveInstance> matches = instancesByName.getOrDefault(name, XList.create());
+      checkState(matches.size() <= 1, "There are " + matches.size() + " instances named " + name);
+      Node node = new Node(name, matches.isEmpty() ? null : matches.get(0));
+      if (spec.isRoutingNames()) {
+        node.record = queen.getARecordValue(name).orElse("");
+      }
+      if (node.instance != null) {
+        HiveInstance instance = node.instance;
+        if (spec.getType() != null && instance.getType() != spec.getType()) {
+          node.type = spec.getType();
+        }
+        node.start = instance.getState() == InstanceStateName.Stopped;
+        spec.getTags().forEach((k, v) -> {
+          if (!instance.getTag(k).equals(v)) {
+            node.tags.put(k, v);
+          }
+        });
+        node.register = spec.getLoadBalancer() != null && !registered.contains(instance.getId());
+      }
+      ret.add(node);
+    }
+    return ret;
+  }
+
+  private Set<String> getRegistered() {
+    return ImmutableSet.copyOf(queen.getLoadBalancer(spec.getLoadBalancer()).getTargetHealthById().keySet());
+  }
+
+  private class Node {
+    private final String name;
+    private final HiveInstance instance;
+
+    private InstanceType type = null;
+    private boolean start = false;
+    private final Map<String, String> tags = new LinkedHashMap<>();
+    private String record = "";
+    private boolean register = false;
+
+    public Node(String name, HiveInstance instance) {
+      this.name = name;
+      this.instance = instance;
+    }
+
+    public boolean hasInstanceChanges() {
+      return type != null || start || !tags.isEmpty();
+    }
+
+    public XList<String> describe() {
+      XList<String> ret = XList.create();
+      if (instance == null) {
+        ret.add(name + ": launch " + spec.getType() + " from " + spec.getImageId());
+        if (spec.isRoutingNames()) {
+          ret.add(name + ": dns -> (new ip)");
+        }
+        if (spec.getLoadBalancer() != null) {
+          ret.add(name + ": register with " + spec.getLoadBalancer());
+        }
+        return ret;
+      }
+      if (type != null) {
+        ret.add(name + ": type " + instance.getType() + " -> " + type);
+      } else if (start) {
+        ret.add(name + ": start");
+      }
+      if (!tags.isEmpty()) {
+        ret.add(name + ": tags " + tags);
+      }
+      if (spec.isRoutingNames()) {
+        if (type != null || start) {
+          ret.add(name + ": dns -> (ip after restart)");
+        } else if (!instance.getIp().isEmpty() && !instance.getIp().equals(record)) {
+          ret.add(name + ": dns " + (record.isEmpty() ? "(none)" : record) + " -> " + instance.getIp());
+        }
+      }
+      if (register) {
+        ret.add(name + ": register with " + spec.getLoadBalancer());
+      }
+      return ret;
+    }
+  }
+
+}
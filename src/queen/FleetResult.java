@@ -0,0 +1,61 @@
+package queen;
+
+import ox.x.XMap;
+
+/**
+ * The per-instance outcome of a FleetExecutor run.
+ */
+public class FleetResult<T> {
+
+  private final XMap<HiveInstance, T> results = XMap.create();
+  private final XMap<HiveInstance, Throwable> failures = XMap.create();
+  private final TimelineReport timelineReport = new TimelineReport();
+
+  synchronized void addResult(HiveInstance instance, T result) {
+    results.put(instance, result);
+  }
+
+  synchronized void addFailure(HiveInstance instance, Throwable t) {
+    failures.put(instance, t);
+  }
+
+  /**
+   * The return value of each instance's operation that succeeded.
+   */
+  public XMap<HiveInstance, T> getResults() {
+    return results;
+  }
+
+  public XMap<HiveInstance, Throwable> getFailures() {
+    return failures;
+  }
+
+  /**
+   * Where the time went in the long-running operations (stop, start, clone, etc.) this run performed.
+   */
+  public TimelineReport getTimelineReport() {
+    return timelineReport;
+  }
+
+  public boolean isSuccess() {
+    return failures.isEmpty();
+  }
+
+  /**
+   * Throws if any operation failed, with the other failures attached as suppressed exceptions.
+   */
+  public FleetResult<T> checkSuccess() {
+    if (isSuccess()) {
+      return this;
+    }
+    RuntimeException e = new RuntimeException(failures.size() + " fleet operation(s) failed: " + failures.keySet());
+    failures.values().forEach(e::addSuppressed);
+    throw e;
+  }
+
+  @Override
+  public String toString() {
+    return results.size() + " succeeded, " + failures.size() + " failed";
+  }
+
+}
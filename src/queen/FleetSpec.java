@@ -0,0 +1,124 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.google.common.collect.ImmutableMap;
+
+import ox.x.XList;
+import ox.x.XOptional;
+
+/**
+ * The desired state of a set of named instances, e.g. "qa1..qa20, t3.small, DNS pointing at each node, registered in
+ * api-ender-com". Pass it to HiveQueen.reconciler() to see or apply the changes needed to get there.
+ *
+ * Anything that isn't set (type, tags, DNS, load balancer) is left alone.
+ */
+public class FleetSpec {
+
+  private final XList<String> names = XList.create();
+  private final Map<String, String> tags = new LinkedHashMap<>();
+
+  private InstanceType type = null;
+  private String imageId = null;
+  private XOptional<String> iamRole = XOptional.empty();
+  private boolean routeNames = false;
+  private String loadBalancer = null;
+  private int concurrency = 10;
+
+  public FleetSpec instance(String name) {
+    checkArgument(!names.contains(name), "Duplicate instance name: " + name);
+    names.add(name);
+    return this;
+  }
+
+  public FleetSpec instances(Collection<String> names) {
+    names.forEach(this::instance);
+    return this;
+  }
+
+  public FleetSpec type(InstanceType type) {
+    this.type = type;
+    return this;
+  }
+
+  /**
+   * The image that missing instances are launched from. Without one, missing instances are an error.
+   */
+  public FleetSpec launchFrom(String imageId) {
+    this.imageId = imageId;
+    return this;
+  }
+
+  public FleetSpec iamRole(String iamRole) {
+    this.iamRole = XOptional.ofNullable(iamRole);
+    return this;
+  }
+
+  public FleetSpec tag(String key, String value) {
+    tags.put(key, value);
+    return this;
+  }
+
+  /**
+   * Each instance's name is also a domain, which should have an A record pointing at the instance's IP.
+   */
+  public FleetSpec routeNamesToInstances() {
+    this.routeNames = true;
+    return this;
+  }
+
+  /**
+   * Every instance should be a target of the given load balancer.
+   */
+  public FleetSpec loadBalancer(String name) {
+    this.loadBalancer = name;
+    return this;
+  }
+
+  /**
+   * How many instances are changed at once. Defaults to 10.
+   */
+  public FleetSpec concurrency(int concurrency) {
+    checkArgument(concurrency > 0, "concurrency must be positive.");
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  XList<String> getNames() {
+    return names;
+  }
+
+  Map<String, String> getTags() {
+    return ImmutableMap.copyOf(tags);
+  }
+
+  InstanceType getType() {
+    return type;
+  }
+
+  String getImageId() {
+    return imageId;
+  }
+
+  XOptional<String> getIamRole() {
+    return iamRole;
+  }
+
+  boolean isRoutingNames() {
+    return routeNames;
+  }
+
+  String getLoadBalancer() {
+    return loadBalancer;
+  }
+
+  int getConcurrency() {
+    return concurrency;
+  }
+
+}
@@ -0,0 +1,435 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ox.util.Utils.normalize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancerNotFoundException;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ox.Config;
+import ox.Json;
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+import ox.x.XOptional;
+
+/**
+ * Keeps one HiveQueen (and with it the AWS clients, caches and watchers) warm, and serves its instance, DNS and load
+ * balancer operations over HTTP on localhost. Scripts can then call e.g.
+ *
+ * curl -H "Authorization: Bearer $(cat ~/.hivequeen/daemon-token)" -H "Content-Type: application/json" \
+ * -d '{"name": "qa1.ender.com"}' localhost:7070/instance/reboot
+ *
+ * instead of starting a JVM and a HiveQueen of their own, and all of their calls share one set of throttling budgets.
+ *
+ * Every request needs the bearer token which the daemon generates at startup and writes to the token file (readable
+ * only by its owner). So that web pages open on the same machine can't use the API, requests with an Origin header or
+ * a Host other than localhost are refused, and POST bodies must be sent as application/json.
+ *
+ * GET requests take their arguments from the query string and POST requests from a Json body. Responses are Json;
+ * errors are {"error": "..."} with a 400 for bad arguments, a 401/403/415 for refused requests, a 404 for a missing
+ * instance, load balancer or record, and a 500 for anything else.
+ */
+public class HiveDaemon {
+
+  public static final int DEFAULT_PORT = 7070;
+
+  public static final Path DEFAULT_TOKEN_FILE = Paths.get(System.getProperty("user.home"), ".hivequeen",
+      "daemon-token");
+
+  private static final Set<String> LOCAL_HOSTS = ImmutableSet.of("localhost", "127.0.0.1", "[::1]");
+
+  private final HiveQueen queen;
+  private final HttpServer server;
+  private final byte[] token;
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-daemon-%d").build());
+
+  private final Map<String, Handler> routes = new LinkedHashMap<>();
+
+  /**
+   * Generates a new token and writes it to tokenFile, replacing any token from an earlier run.
+   */
+  public HiveDaemon(HiveQueen queen, int port, Path tokenFile) throws IOException {
+    this.queen = queen;
+    this.token = writeToken(tokenFile);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+    route("GET", "/instances", this::getInstances);
+    route("GET", "/instance", r -> toJson(getInstance(r)));
+    route("POST", "/instance/launch", this::launch);
+    route("POST", "/instance/start", r -> {
+      HiveInstance instance = getInstance(r);
+      instance.start();
+      return toJson(instance.awaitIp());
+    });
+    route("POST", "/instance/stop", r -> {
+      HiveInstance instance = getInstance(r);
+      instance.stop();
+      return toJson(instance.refresh());
+    });
+    route("POST", "/instance/reboot", r -> {
+      HiveInstance instance = getInstance(r);
+      instance.reboot();
+      return toJson(instance.refresh());
+    });
+    route("POST", "/instance/terminate", r -> {
+      HiveInstance instance = getInstance(r);
+      instance.terminate();
+      return toJson(instance.refresh());
+    });
+    route("POST", "/instance/type", r -> {
+      HiveInstance instance = getInstance(r);
+      instance.changeInstanceType(InstanceType.fromValue(require(r, "type")));
+      return toJson(instance.refresh());
+    });
+    route("POST", "/instance/tags", r -> {
+      checkArgument(r.has("tags"), "Missing tags");
+      Map<String, String> tags = new LinkedHashMap<>();
+      r.getJson("tags").forEach(tags::put);
+      return toJson(getInstance(r).withTags(tags));
+    });
+    route("GET", "/dns", r -> {
+      Json ret = Json.array();
+      queen.getDNSRecords(require(r, "name")).forEach(record -> ret.add(toJson(record)));
+      return ret;
+    });
+    route("POST", "/dns", r -> {
+      queen.createDNSRecord(require(r, "name"), require(r, "value"), flag(r, "await"));
+      return Json.object().with("name", r.get("name")).with("value", r.get("value"));
+    });
+    route("POST", "/dns/delete", r -> {
+      String name = require(r, "name");
+      try {
+        queen.deleteDNSRecord(name);
+      } catch (IllegalStateException e) {
+        // thrown when neither the record index nor Route53 has the record
+        throw new RefusedException(404, e.getMessage());
+      }
+      return Json.object().with("name", name);
+    });
+    route("GET", "/lb/health", r -> {
+      Json ret = Json.object();
+      getLoadBalancer(r).getTargetHealthById().forEach((id, state) -> ret.with(id, state.toString()));
+      return ret;
+    });
+    route("POST", "/lb/register", r -> {
+      HiveLoadBalancer loadBalancer = getLoadBalancer(r);
+      HiveInstance instance = getInstance(r);
+      loadBalancer.register(instance, flag(r, "await"));
+      return Json.object().with(instance.getId(), health(loadBalancer, instance));
+    });
+    route("POST", "/lb/deregister", r -> {
+      HiveLoadBalancer loadBalancer = getLoadBalancer(r);
+      HiveInstance instance = getInstance(r);
+      loadBalancer.deregister(instance, flag(r, "await"));
+      return Json.object().with(instance.getId(), health(loadBalancer, instance));
+    });
+    route("GET", "/metrics", r -> {
+      Json ret = Json.object();
+      queen.getMetrics().snapshot().forEach((operation, stats) -> ret.with(operation, Json.object()
+          .with("calls", stats.getCalls())
+          .with("attempts", stats.getAttempts())
+          .with("errors", stats.getErrors())
+          .with("throttles", stats.getThrottles())
+          .with("totalMillis", stats.getTotalTime().toMillis())
+          .with("meanMillis", stats.getMeanLatency().toMillis())
+          .with("maxMillis", stats.getMaxLatency().toMillis())));
+      return ret;
+    });
+
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+  }
+
+  public HiveDaemon start() {
+    server.start();
+    Log.info("HiveDaemon listening on " + server.getAddress());
+    return this;
+  }
+
+  /**
+   * Stops accepting requests, giving the ones in progress up to the given number of seconds to finish.
+   */
+  public void stop(int delaySeconds) {
+    server.stop(delaySeconds);
+    executor.shutdownNow();
+  }
+
+  private void route(String method, String path, Handler handler) {
+    routes.put(method + " " + path, handler);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    Handler handler = routes.get(method + " " + path);
+
+    int status = 200;
+    Json body;
+    try {
+      checkRequest(exchange);
+      if (handler == null) {
+        throw new RefusedException(404, "No such operation: " + method + " " + path);
+      }
+      body = handler.handle(parse(exchange));
+    } catch (RefusedException e) {
+      status = e.status;
+      body = Json.object().with("error", e.getMessage());
+    } catch (IllegalArgumentException e) {
+      status = 400;
+      body = Json.object().with("error", normalize(e.getMessage()));
+    } catch (Exception e) {
+      Log.error("HiveDaemon " + method + " " + path + " failed: " + e);
+      status = 500;
+      body = Json.object().with("error", e.toString());
+    }
+
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  /**
+   * Throws a RefusedException unless the request comes from a local, authorized, non-browser client.
+   */
+  private void checkRequest(HttpExchange exchange) {
+    Headers headers = exchange.getRequestHeaders();
+
+    String host = normalize(headers.getFirst("Host")).toLowerCase();
+    int port = host.lastIndexOf(':');
+    if (port > host.lastIndexOf(']')) {
+      host = host.substring(0, port);
+    }
+    if (!LOCAL_HOSTS.contains(host)) {
+      throw new RefusedException(403, "Host must be localhost");
+    }
+    if (headers.containsKey("Origin")) {
+      throw new RefusedException(403, "Requests from web pages aren't allowed");
+    }
+
+    String auth = normalize(headers.getFirst("Authorization"));
+    byte[] given = auth.startsWith("Bearer ") ? auth.substring("Bearer ".length()).trim()
+        .getBytes(StandardCharsets.UTF_8) : new byte[0];
+    if (!MessageDigest.isEqual(given, token)) {
+      throw new RefusedException(401, "Missing or wrong bearer token");
+    }
+
+    if (exchange.getRequestMethod().equals("POST")) {
+      String contentType = normalize(headers.getFirst("Content-Type")).toLowerCase();
+      if (!contentType.equals("application/json") && !contentType.startsWith("application/json;")) {
+        throw new RefusedException(415, "POST bodies must be application/json");
+      }
+    }
+  }
+
+  private Json parse(HttpExchange exchange) throws IOException {
+    if (exchange.getRequestMethod().equals("GET")) {
+      Json ret = Json.object();
+      String query = normalize(exchange.getRequestURI().getRawQuery());
+      for (String param : query.split("&")) {
+        if (param.isEmpty()) {
+          continue;
+        }
+        int i = param.indexOf('=');
+        String key = i < 0 ? param : param.substring(0, i);
+        String value = i < 0 ? "" : param.substring(i + 1);
+        ret.with(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+      }
+      return ret;
+    }
+    try (InputStream is = exchange.getRequestBody()) {
+      String s = new String(is.readAllBytes(), StandardCharsets.UTF_8).trim();
+      if (s.isEmpty()) {
+        return Json.object();
+      }
+      try {
+        return new Json(s);
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid Json body: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Writes a new random token to the file, readable and writable only by its owner.
+   */
+  private static byte[] writeToken(Path tokenFile) throws IOException {
+    byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    String ret = BaseEncoding.base16().lowerCase().encode(bytes);
+
+    Files.createDirectories(tokenFile.toAbsolutePath().getParent());
+    Files.deleteIfExists(tokenFile);
+    try {
+      Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system
+      File file = Files.createFile(tokenFile).toFile();
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+    }
+    Files.write(tokenFile, ret.getBytes(StandardCharsets.UTF_8));
+    return ret.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private Json getInstances(Json request) {
+    Json ret = Json.array();
+    XList<HiveInstance> instances = queen.getInstances();
+    if (request.has("tag")) {
+      // tag=key or tag=key:value
+      String tag = request.get("tag");
+      int i = tag.indexOf(':');
+      String key = i < 0 ? tag : tag.substring(0, i);
+      instances = instances.filter(instance -> i < 0 ? !instance.getTag(key).isEmpty()
+          : instance.getTag(key).equals(tag.substring(i + 1)));
+    }
+    instances.forEach(instance -> ret.add(toJson(instance)));
+    return ret;
+  }
+
+  private Json launch(Json request) {
+    Map<String, String> tags = new LinkedHashMap<>();
+    if (request.has("tags")) {
+      request.getJson("tags").forEach(tags::put);
+    }
+    HiveInstance instance = queen.launchInstanceFromImage(require(request, "name"),
+        InstanceType.fromValue(require(request, "type")), require(request, "image"),
+        XOptional.ofNullable(request.get("iamRole")), tags);
+    return toJson(instance);
+  }
+
+  /**
+   * The instance named by the request's "id" or "name". Refused with a 404 if there is no such instance.
+   */
+  private HiveInstance getInstance(Json request) {
+    XOptional<HiveInstance> ret;
+    String description;
+    if (request.has("id")) {
+      description = require(request, "id");
+      try {
+        ret = queen.getInstanceOptional(description);
+      } catch (AmazonServiceException e) {
+        if (!normalize(e.getErrorCode()).startsWith("InvalidInstanceID")) {
+          throw e;
+        }
+        ret = XOptional.empty();
+      }
+    } else {
+      description = require(request, "name");
+      ret = queen.getInstanceByNameOptional(description);
+    }
+    if (!ret.isPresent()) {
+      throw new RefusedException(404, "No such instance: " + description);
+    }
+    return ret.get();
+  }
+
+  private HiveLoadBalancer getLoadBalancer(Json request) {
+    String name = require(request, "lb");
+    try {
+      return queen.getLoadBalancer(name);
+    } catch (LoadBalancerNotFoundException e) {
+      throw new RefusedException(404, "No such load balancer: " + name);
+    }
+  }
+
+  private String health(HiveLoadBalancer loadBalancer, HiveInstance instance) {
+    TargetHealthStateEnum ret = loadBalancer.getTargetHealth(instance);
+    return ret == null ? "unregistered" : ret.toString();
+  }
+
+  private static String require(Json request, String key) {
+    String ret = normalize(request.get(key));
+    checkArgument(!ret.isEmpty(), "Missing " + key);
+    return ret;
+  }
+
+  private static boolean flag(Json request, String key) {
+    return request.has(key) && Boolean.parseBoolean(request.get(key));
+  }
+
+  private static Json toJson(HiveInstance instance) {
+    return Json.object()
+        .with("id", instance.getId())
+        .with("name", instance.getName())
+        .with("state", instance.getState().toString())
+        .with("type", instance.getType().toString())
+        .with("ip", instance.getIp())
+        .with("internalIp", instance.getInternalIp())
+        .with("tags", instance.getTags());
+  }
+
+  private static Json toJson(ResourceRecordSet record) {
+    Json values = Json.array();
+    record.getResourceRecords().stream().map(ResourceRecord::getValue).forEach(values::add);
+    return Json.object()
+        .with("name", HiveQueen.normalizeDomain(record.getName()))
+        .with("type", record.getType())
+        .with("ttl", record.getTTL())
+        .with("values", values);
+  }
+
+  private static class RefusedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public RefusedException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private static interface Handler {
+    Json handle(Json request) throws Exception;
+  }
+
+  /**
+   * Runs a daemon with the "ender" config, on the port given as the first argument or DEFAULT_PORT. The token is
+   * written to DEFAULT_TOKEN_FILE.
+   */
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    HiveQueen queen = new HiveQueen(Config.load("ender")).withInventoryCache(InventoryCache.withDefaults());
+    HiveDaemon daemon = new HiveDaemon(queen, port, DEFAULT_TOKEN_FILE).start();
+    Log.info("Token written to " + DEFAULT_TOKEN_FILE);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> daemon.stop(5)));
+  }
+
+}
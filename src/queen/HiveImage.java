@@ -1,7 +1,13 @@
 package queen;
 
+import java.time.Duration;
+import java.time.Instant;
+
 import com.amazonaws.services.ec2.model.Image;
 import com.amazonaws.services.ec2.model.ImageState;
+import com.amazonaws.services.ec2.model.Tag;
+
+import ox.x.XList;
 
 public class HiveImage {
 
@@ -15,6 +21,10 @@ public class HiveImage {
     return image.getImageId();
   }
 
+  public String getName() {
+    return image.getName();
+  }
+
   public boolean isAvailable() {
     return getState() == ImageState.Available;
   }
@@ -23,6 +33,32 @@ public class HiveImage {
     return ImageState.fromValue(image.getState());
   }
 
+  public Instant getCreationTime() {
+    return Instant.parse(image.getCreationDate());
+  }
+
+  public Duration getAge() {
+    return Duration.between(getCreationTime(), Instant.now());
+  }
+
+  public String getTag(String key) {
+    for (Tag tag : image.getTags()) {
+      if (tag.getKey().equals(key)) {
+        return tag.getValue();
+      }
+    }
+    return "";
+  }
+
+  /**
+   * The EBS snapshots backing this image. Deregistering the image leaves these behind.
+   */
+  public XList<String> getSnapshotIds() {
+    return XList.create(image.getBlockDeviceMappings())
+        .filter(m -> m.getEbs() != null && m.getEbs().getSnapshotId() != null)
+        .map(m -> m.getEbs().getSnapshotId());
+  }
+
   @Override
   public String toString() {
     return getId();
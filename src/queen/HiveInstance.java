@@ -1,11 +1,14 @@
 package queen;
 
-import static ox.util.Utils.attempt;
 import static ox.util.Utils.normalize;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DeleteTagsRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
@@ -16,33 +19,81 @@ import com.amazonaws.services.ec2.model.StartInstancesRequest;
 import com.amazonaws.services.ec2.model.StopInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import ox.Await;
 import ox.Await.AwaitTimeoutException;
 import ox.Json;
 import ox.Log;
 import ox.x.XList;
-
+import queen.InventoryCache.ResourceType;
+
+/**
+ * An immutable snapshot of an instance: its id, state, type, IPs and tags as of when it was described. Snapshots are
+ * small and safe to share between threads, so large inventories can be cached and handed around freely.
+ *
+ * Nothing here changes after construction. Calls that change the instance (tags, start, stop, etc.) go to EC2, and the
+ * tag methods return a new snapshot with the change applied. Call refresh() for a fresh snapshot of everything.
+ */
 public class HiveInstance {
 
+  /**
+   * Tag keys (and common values like roles and environments) repeat across nearly every instance, so each distinct
+   * string is only kept once.
+   */
+  private static final Interner<String> strings = Interners.newWeakInterner();
+
   private final HiveQueen queen;
-  private final Instance instance;
+  private final String id;
+  private final InstanceStateName state;
+  private final String type;
+  private final String ip;
+  private final String internalIp;
+  private final ImmutableMap<String, String> tags;
 
   public HiveInstance(HiveQueen queen, Instance instance) {
+    this(queen, instance.getInstanceId(), InstanceStateName.fromValue(instance.getState().getName()),
+        strings.intern(normalize(instance.getInstanceType())), normalize(instance.getPublicIpAddress()),
+        normalize(instance.getPrivateIpAddress()), toMap(instance.getTags()));
+  }
+
+  private HiveInstance(HiveQueen queen, String id, InstanceStateName state, String type, String ip, String internalIp,
+      ImmutableMap<String, String> tags) {
     this.queen = queen;
-    this.instance = instance;
+    this.id = id;
+    this.state = state;
+    this.type = type;
+    this.ip = ip;
+    this.internalIp = internalIp;
+    this.tags = tags;
+  }
+
+  private static ImmutableMap<String, String> toMap(List<Tag> tags) {
+    Map<String, String> ret = new LinkedHashMap<>();
+    tags.forEach(tag -> ret.put(strings.intern(tag.getKey()), strings.intern(normalize(tag.getValue()))));
+    return ImmutableMap.copyOf(ret);
+  }
+
+  /**
+   * Describes this instance again and returns the new snapshot. This one is left as it was.
+   */
+  public HiveInstance refresh() {
+    return queen.getInstances(XList.of(id)).only().get();
   }
 
   public String getId() {
-    return instance.getInstanceId();
+    return id;
   }
 
   public String getIp() {
-    return normalize(instance.getPublicIpAddress());
+    return ip;
   }
 
   public String getInternalIp() {
-    return normalize(instance.getPrivateIpAddress());
+    return internalIp;
   }
 
   public boolean isTerminated() {
@@ -66,39 +117,55 @@ public class HiveInstance {
   }
 
   public void awaitState(InstanceStateName state, Duration timeout) {
-    Await.every(Duration.ofSeconds(1))
-        .timeout(timeout)
-        .verbose("Instance " + state)
-        .await(() -> queen.getInstance(getId()).getState() == state);
+    await(queen.getInstanceWatcher().awaitState(getId(), state), Duration.ofSeconds(1), timeout, "Instance " + state);
   }
 
-  public void awaitIp() {
-    Await.every(Duration.ofSeconds(2))
-        .timeout(Duration.ofMinutes(20))
-        .verbose("Instance IP")
-        .await(() -> {
-          return queen.getInstanceOptional(getId())
-              .compute(instance -> !instance.getIp().isEmpty(), false);
-        });
+  /**
+   * Waits for this instance to have a public IP and returns a fresh copy of it.
+   */
+  public HiveInstance awaitIp() {
+    return await(queen.getInstanceWatcher().awaitIp(getId()), Duration.ofSeconds(2), Duration.ofMinutes(20),
+        "Instance IP");
   }
 
   public void reboot() {
-    queen.getEC2().rebootInstances(new RebootInstancesRequest(XList.of(getId())));
-
-    try {
-      Await.every(Duration.ofSeconds(1))
-          .timeout(Duration.ofSeconds(5))
-          .verbose("Instance Shutting Down")
-          .await(() -> !queen.getInstance(getId()).isRunning());
-    } catch (AwaitTimeoutException e) {
-      throw new RuntimeException("There was a problem shutting this instance down!");
-    }
+    timelines().operation("reboot", this, () -> {
+      timelines().phase("reboot request",
+          () -> queen.getEC2().rebootInstances(new RebootInstancesRequest(XList.of(getId()))));
+      invalidate();
+
+      try {
+        await(queen.getInstanceWatcher().await(getId(), i -> !i.isRunning()), Duration.ofSeconds(1),
+            Duration.ofSeconds(5), "Instance Shutting Down");
+      } catch (AwaitTimeoutException e) {
+        throw new RuntimeException("There was a problem shutting this instance down!");
+      }
+    });
+  }
+
+  /**
+   * Blocks until the watcher completes the given future. The Await loop here only checks the local future; the actual
+   * polling of EC2 is shared across all waiters by the InstanceWatcher.
+   */
+  private HiveInstance await(CompletableFuture<HiveInstance> future, Duration every, Duration timeout,
+      String description) {
+    return timelines().phase(description, () -> {
+      try {
+        Await.every(every).timeout(timeout).verbose(description).await(timelines().counted(future::isDone));
+      } catch (AwaitTimeoutException e) {
+        future.cancel(false);
+        throw e;
+      }
+      return future.join();
+    });
   }
 
   public void hardReboot() {
-    stop();
-    start();
-    awaitIp();
+    timelines().operation("hardReboot", this, () -> {
+      stop();
+      start();
+      awaitIp();
+    });
   }
 
   /**
@@ -113,81 +180,142 @@ public class HiveInstance {
    * instance.
    */
   public void stop() {
-    queen.getEC2().stopInstances(new StopInstancesRequest(XList.of(getId())));
-    try {
-      awaitState(InstanceStateName.Stopped, Duration.ofMinutes(1));
-    } catch (AwaitTimeoutException e) {
-      Log.debug("Stopping with force.");
-      queen.getEC2().stopInstances(new StopInstancesRequest(XList.of(getId())).withForce(true));
-      awaitState(InstanceStateName.Stopped, Duration.ofMinutes(9));
-    }
+    timelines().operation("stop", this, () -> {
+      timelines().phase("stop request",
+          () -> queen.getEC2().stopInstances(new StopInstancesRequest(XList.of(getId()))));
+      invalidate();
+      try {
+        awaitState(InstanceStateName.Stopped, Duration.ofMinutes(1));
+      } catch (AwaitTimeoutException e) {
+        Log.debug("Stopping with force.");
+        timelines().phase("force stop request", () -> queen.getEC2()
+            .stopInstances(new StopInstancesRequest(XList.of(getId())).withForce(true)));
+        awaitState(InstanceStateName.Stopped, Duration.ofMinutes(9));
+      }
+    });
   }
 
   public void start() {
-    queen.getEC2().startInstances(new StartInstancesRequest(XList.of(getId())));
+    timelines().operation("start", this, () -> {
+      timelines().phase("start request",
+          () -> queen.getEC2().startInstances(new StartInstancesRequest(XList.of(getId()))));
+      invalidate();
+    });
   }
 
   public void terminate() {
     queen.getEC2().terminateInstances(new TerminateInstancesRequest(XList.of(getId())));
+    invalidate();
   }
 
   public void changeInstanceType(InstanceType type) {
     if (getType() == type) {
       return;
     }
-    stop();
-    queen.getEC2().modifyInstanceAttribute(
-        new ModifyInstanceAttributeRequest()
-            .withInstanceId(getId())
-            .withInstanceType(type.toString()));
-    queen.getEC2().startInstances(new StartInstancesRequest(XList.of(getId())));
-    awaitIp();
+    timelines().operation("changeInstanceType", this, () -> {
+      stop();
+      timelines().phase("modify type", () -> queen.getEC2().modifyInstanceAttribute(
+          new ModifyInstanceAttributeRequest()
+              .withInstanceId(getId())
+              .withInstanceType(type.toString())));
+      start();
+      awaitIp();
+    });
   }
 
   public InstanceStateName getState() {
-    return InstanceStateName.fromValue(instance.getState().getName());
+    return state;
   }
 
   public InstanceType getType() {
-    return InstanceType.fromValue(instance.getInstanceType());
+    return InstanceType.fromValue(type);
   }
 
+  /**
+   * Sets the tag and returns a snapshot with it. An empty value removes the tag.
+   */
   public HiveInstance withTag(String key, Object value) {
     String s = value == null ? "" : normalize(value.toString());
     if (s.isEmpty()) {
-      removeTag(key);
-    } else {
-      Tag tag = new Tag(key, s);
-      attempt(() -> {
-        queen.getEC2().createTags(new CreateTagsRequest()
-            .withResources(instance.getInstanceId())
-            .withTags(tag));
-        return true;
-      }, 10, 1000);
-      instance.withTags(tag);
+      return removeTag(key);
     }
-    return this;
+    queen.tagResources(XList.of(id), ImmutableMap.of(key, s));
+    return withTagMap(ImmutableMap.of(key, s), ImmutableSet.of());
   }
 
+  /**
+   * Sets all of the given tags with one CreateTags call and returns a snapshot with them. Tags with an empty value are
+   * removed with one DeleteTags call.
+   */
+  public HiveInstance withTags(Map<String, ?> tags) {
+    Map<String, String> toSet = new LinkedHashMap<>();
+    XList<String> toRemove = XList.create();
+    tags.forEach((key, value) -> {
+      String s = value == null ? "" : normalize(value.toString());
+      if (s.isEmpty()) {
+        toRemove.add(key);
+      } else {
+        toSet.put(key, s);
+      }
+    });
+
+    if (!toSet.isEmpty()) {
+      queen.tagResources(XList.of(id), toSet);
+    }
+    if (!toRemove.isEmpty()) {
+      queen.getEC2().deleteTags(new DeleteTagsRequest()
+          .withResources(id)
+          .withTags(toRemove.map(Tag::new)));
+    }
+    invalidate();
+    return withTagMap(toSet, toRemove);
+  }
+
+  /**
+   * Removes the tag and returns a snapshot without it.
+   */
   public HiveInstance removeTag(String key) {
     queen.getEC2()
         .deleteTags(new DeleteTagsRequest()
-            .withResources(instance.getInstanceId())
+            .withResources(id)
             .withTags(new Tag(key)));
+    invalidate();
+    return withTagMap(ImmutableMap.of(), ImmutableSet.of(key));
+  }
+
+  private HiveInstance withTagMap(Map<String, String> toSet, Collection<String> toRemove) {
+    Map<String, String> m = new LinkedHashMap<>(tags);
+    m.keySet().removeAll(toRemove);
+    toSet.forEach((k, v) -> m.put(strings.intern(k), strings.intern(v)));
+    return new HiveInstance(queen, id, state, type, ip, internalIp, ImmutableMap.copyOf(m));
+  }
 
-    return this;
+  private Timelines timelines() {
+    return queen.getTimelines();
+  }
+
+  /**
+   * Drops any cached lookups of instances, since one of them (this one) just changed.
+   */
+  private void invalidate() {
+    queen.getInventoryCache().invalidate(ResourceType.INSTANCES);
   }
 
   public Json getTags() {
     Json ret = Json.object();
-    instance.getTags().forEach(tag -> {
-      ret.with(tag.getKey(), tag.getValue());
-    });
+    tags.forEach(ret::with);
     return ret;
   }
 
+  /**
+   * The tags on this instance. Unlike getTags(), this doesn't copy anything, so it's cheap to call in a loop.
+   */
+  public Map<String, String> getTagMap() {
+    return tags;
+  }
+
   public String getTag(String key) {
-    return normalize(getTags().get(key));
+    return normalize(tags.get(key));
   }
 
   public String getName() {
@@ -202,7 +330,7 @@ public class HiveInstance {
 
   @Override
   public int hashCode() {
-    return getId().hashCode();
+    return id.hashCode();
   }
 
   @Override
@@ -210,7 +338,7 @@ public class HiveInstance {
     if (!(obj instanceof HiveInstance)) {
       return false;
     }
-    return getId().equals(((HiveInstance) obj).getId());
+    return id.equals(((HiveInstance) obj).id);
   }
 
   public HiveQueen getQueen() {
@@ -1,27 +1,38 @@
 package queen;
 
+import static com.google.common.base.Preconditions.checkState;
+
 import java.time.Duration;
+import java.util.List;
 
 import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsRequest;
 import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
-import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
 import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancer;
 import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsRequest;
 import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
 import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
-import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
 import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.collect.ImmutableList;
 
 import ox.Await;
 import ox.x.XList;
 import ox.x.XMap;
+import queen.InventoryCache.ResourceType;
 
 public class HiveLoadBalancer {
 
+  /**
+   * Target states from least to most severe. Draining is last so that a target isn't considered drained while any of
+   * its groups is still draining it.
+   */
+  private static final ImmutableList<TargetHealthStateEnum> SEVERITY = ImmutableList.of(TargetHealthStateEnum.Healthy,
+      TargetHealthStateEnum.Unused, TargetHealthStateEnum.Initial, TargetHealthStateEnum.Unavailable,
+      TargetHealthStateEnum.Unhealthy, TargetHealthStateEnum.Draining);
+
   private final HiveQueen queen;
   private final LoadBalancer loadBalancer;
 
-  private TargetGroup cachedTargetGroup = null;
+  private volatile XList<String> targetGroupArns = null;
 
   protected HiveLoadBalancer(HiveQueen queen, LoadBalancer loadBalancer) {
     this.queen = queen;
@@ -29,9 +40,12 @@ public class HiveLoadBalancer {
   }
 
   public XList<TargetGroup> getTargetGroups() {
-    return XList.create(queen.getLoadBalancing()
-        .describeTargetGroups(new DescribeTargetGroupsRequest().withLoadBalancerArn(loadBalancer.getLoadBalancerArn()))
-        .getTargetGroups());
+    List<TargetGroup> ret = queen.getInventoryCache().get(ResourceType.TARGET_GROUPS,
+        "lb:" + loadBalancer.getLoadBalancerArn(), () -> queen.getLoadBalancing()
+            .describeTargetGroups(
+                new DescribeTargetGroupsRequest().withLoadBalancerArn(loadBalancer.getLoadBalancerArn()))
+            .getTargetGroups());
+    return XList.create(ret);
   }
 
   public XList<HiveInstance> getTargets() {
@@ -39,22 +53,52 @@ public class HiveLoadBalancer {
   }
 
   public XMap<HiveInstance, TargetHealthStateEnum> getTargetsWithHealth() {
-    XList<TargetHealthDescription> descriptions = XList.create(queen.getLoadBalancing()
-        .describeTargetHealth(
-            new DescribeTargetHealthRequest().withTargetGroupArn(getTargetGroup().getTargetGroupArn()))
-        .getTargetHealthDescriptions());
-    return descriptions.toMap(d -> queen.getInstance(d.getTarget().getId()),
-        d -> TargetHealthStateEnum.fromValue(d.getTargetHealth().getState()));
+    XMap<String, TargetHealthStateEnum> health = getTargetHealthById();
+    return queen.getInstances(health.keySet()).toMap(i -> i, i -> health.get(i.getId()));
+  }
+
+  /**
+   * A lighter version of getTargetsWithHealth() which only returns the instance ids, avoiding the DescribeInstances
+   * calls.
+   *
+   * If the load balancer has several target groups, a target gets its most severe state across the groups it's in, so
+   * it's only Healthy if it's healthy in every one of them.
+   */
+  public XMap<String, TargetHealthStateEnum> getTargetHealthById() {
+    XMap<String, TargetHealthStateEnum> ret = XMap.create();
+    for (String arn : getTargetGroupArns()) {
+      getTargetHealthById(arn).forEach((id, state) -> {
+        ret.merge(id, state, (a, b) -> severity(a) >= severity(b) ? a : b);
+      });
+    }
+    return ret;
+  }
+
+  private static int severity(TargetHealthStateEnum state) {
+    int ret = SEVERITY.indexOf(state);
+    // a state we don't know about is treated as the worst
+    return ret == -1 ? SEVERITY.size() : ret;
+  }
+
+  /**
+   * The health of the targets in one of this load balancer's target groups. Served from a snapshot shared by the whole
+   * HiveQueen, which is refreshed at most every couple of seconds.
+   */
+  public XMap<String, TargetHealthStateEnum> getTargetHealthById(String targetGroupArn) {
+    XMap<String, TargetHealthStateEnum> ret = XMap.create();
+    ret.putAll(queen.getTargetHealthCache().get(targetGroupArn));
+    return ret;
   }
 
   public TargetHealthStateEnum getTargetHealth(HiveInstance instance) {
-    return getTargetsWithHealth().get(instance);
+    return getTargetHealthById().get(instance.getId());
   }
 
+  /**
+   * Removes the instance from every target group of this load balancer.
+   */
   public void deregister(HiveInstance instance, boolean awaitFullyDrained) {
-    queen.getLoadBalancing()
-        .deregisterTargets(new DeregisterTargetsRequest().withTargetGroupArn(getTargetGroup().getTargetGroupArn())
-            .withTargets(new TargetDescription().withId(instance.getId())));
+    deregisterTargets(XList.of(instance.getId()));
     if (awaitFullyDrained) {
       Await.every(Duration.ofSeconds(2)).verbose("Deregistering taget").timeout(Duration.ofHours(1)).await(() -> {
         TargetHealthStateEnum state = getTargetHealth(instance);
@@ -63,10 +107,11 @@ public class HiveLoadBalancer {
     }
   }
 
+  /**
+   * Adds the instance to every target group of this load balancer.
+   */
   public void register(HiveInstance instance, boolean awaitHealthy) {
-    queen.getLoadBalancing()
-        .registerTargets(new RegisterTargetsRequest().withTargetGroupArn(getTargetGroup().getTargetGroupArn())
-            .withTargets(new TargetDescription().withId(instance.getId())));
+    registerTargets(XList.of(instance.getId()));
     if (awaitHealthy) {
       Await.every(Duration.ofSeconds(2)).verbose("Registering target").timeout(Duration.ofHours(1)).await(() -> {
         return getTargetHealth(instance) == TargetHealthStateEnum.Healthy;
@@ -74,11 +119,48 @@ public class HiveLoadBalancer {
     }
   }
 
-  private TargetGroup getTargetGroup() {
-    if (cachedTargetGroup == null) {
-      cachedTargetGroup = getTargetGroups().only().get();
+  /**
+   * Registers the instances with every target group on the group's own port.
+   */
+  void registerTargets(XList<String> instanceIds) {
+    for (String arn : getTargetGroupArns()) {
+      queen.getLoadBalancing().registerTargets(new RegisterTargetsRequest().withTargetGroupArn(arn)
+          .withTargets(instanceIds.map(id -> new TargetDescription().withId(id))));
+      invalidate(arn);
+    }
+  }
+
+  void deregisterTargets(XList<String> instanceIds) {
+    for (String arn : getTargetGroupArns()) {
+      queen.getLoadBalancing().deregisterTargets(new DeregisterTargetsRequest().withTargetGroupArn(arn)
+          .withTargets(instanceIds.map(id -> new TargetDescription().withId(id))));
+      invalidate(arn);
+    }
+  }
+
+  private void invalidate(String targetGroupArn) {
+    queen.getInventoryCache().invalidate(ResourceType.TARGET_GROUPS);
+    queen.getTargetHealthCache().invalidate(targetGroupArn);
+  }
+
+  /**
+   * Replaces or resizes this load balancer's targets in waves. See RollingUpdate.
+   */
+  public RollingUpdate rollingUpdate() {
+    return new RollingUpdate(this, queen);
+  }
+
+  /**
+   * The target groups of a load balancer rarely change, so they're looked up once per HiveLoadBalancer.
+   */
+  public XList<String> getTargetGroupArns() {
+    XList<String> ret = targetGroupArns;
+    if (ret == null) {
+      ret = getTargetGroups().map(TargetGroup::getTargetGroupArn);
+      checkState(!ret.isEmpty(), "Load balancer " + loadBalancer.getLoadBalancerName() + " has no target groups.");
+      targetGroupArns = ret;
     }
-    return cachedTargetGroup;
+    return ret;
   }
 
 }
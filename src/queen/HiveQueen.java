@@ -1,23 +1,37 @@
 package queen;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static ox.util.Utils.checkNotEmpty;
 import static ox.util.Utils.format;
 import static ox.util.Utils.normalize;
 import static ox.util.Utils.only;
-import static ox.util.Utils.sleep;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-import com.amazonaws.auth.AWSCredentialsProvider;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
-import com.amazonaws.services.ec2.model.CreateImageRequest;
-import com.amazonaws.services.ec2.model.CreateImageResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeImagesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
@@ -25,12 +39,15 @@ import com.amazonaws.services.ec2.model.DescribeVpcsRequest;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.IamInstanceProfileSpecification;
 import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.Subnet;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import com.amazonaws.services.ec2.model.Vpc;
 import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancing;
-import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingClientBuilder;
 import com.amazonaws.services.elasticloadbalancingv2.model.Action;
 import com.amazonaws.services.elasticloadbalancingv2.model.ActionTypeEnum;
 import com.amazonaws.services.elasticloadbalancingv2.model.Certificate;
@@ -55,7 +72,6 @@ import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
 import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroupTuple;
 import com.amazonaws.services.elasticloadbalancingv2.model.TargetTypeEnum;
 import com.amazonaws.services.route53.AmazonRoute53;
-import com.amazonaws.services.route53.AmazonRoute53ClientBuilder;
 import com.amazonaws.services.route53.model.Change;
 import com.amazonaws.services.route53.model.ChangeAction;
 import com.amazonaws.services.route53.model.ChangeBatch;
@@ -64,13 +80,16 @@ import com.amazonaws.services.route53.model.ChangeResourceRecordSetsResult;
 import com.amazonaws.services.route53.model.ChangeStatus;
 import com.amazonaws.services.route53.model.GetChangeRequest;
 import com.amazonaws.services.route53.model.HostedZone;
-import com.amazonaws.services.route53.model.ListHostedZonesRequest;
-import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.InvalidChangeBatchException;
 import com.amazonaws.services.route53.model.RRType;
 import com.amazonaws.services.route53.model.ResourceRecord;
 import com.amazonaws.services.route53.model.ResourceRecordSet;
 import com.google.common.base.CharMatcher;
-import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 import ox.Await;
 import ox.Config;
@@ -78,25 +97,136 @@ import ox.Log;
 import ox.util.Matchers;
 import ox.x.XList;
 import ox.x.XOptional;
+import queen.InventoryCache.ResourceType;
 
 public class HiveQueen {
 
+  /**
+   * The maximum number of instance ids we'll send in a single DescribeInstances call.
+   */
+  private static final int MAX_IDS_PER_DESCRIBE = 200;
+
+  private static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private static final int MAX_RESOURCES_PER_TAG_CALL = 1000;
+
+  /**
+   * How long we'll wait for a new image to become available, whether blocking (clone) or async (createImage).
+   */
+  static final Duration IMAGE_TIMEOUT = Duration.ofMinutes(30);
+
   private final AmazonEC2 ec2;
   private final AmazonRoute53 route53;
   private final AmazonElasticLoadBalancing loadBalancing;
 
+  private final Regions region;
+  private final RegionPool regions;
+  private final MetricsHandler metrics;
+  private final Timelines timelines = new Timelines();
+
+  private final HostedZoneCache hostedZones;
+  private final ZoneRecordIndex records;
+  private final InstanceWatcher instanceWatcher = new InstanceWatcher(this);
+  private final ImageWatcher imageWatcher = new ImageWatcher(this);
+  private final TargetHealthCache targetHealth = new TargetHealthCache(this, Duration.ofSeconds(2));
+  private final HiveQueenAsync async = new HiveQueenAsync(this);
+  private final ImageManager images = new ImageManager(this);
+  private final Map<String, WarmPool> warmPools = new ConcurrentHashMap<>();
+
+  private volatile InventoryCache inventory = InventoryCache.disabled();
+
   public HiveQueen(Config config) {
     this(config.get("hivequeen.key"), config.get("hivequeen.secret"));
   }
 
   public HiveQueen(String key, String secret) {
-    AWSCredentialsProvider provider = new AWSStaticCredentialsProvider(new BasicAWSCredentials(key, secret));
+    this(new RegionPool(new AWSStaticCredentialsProvider(new BasicAWSCredentials(key, secret)),
+        new ClientConfiguration().withRetryPolicy(AdaptiveRetryPolicy.create())), Regions.US_EAST_2);
+  }
+
+  HiveQueen(RegionPool regions, Regions region) {
+    this(regions.createEC2(region), regions.getRoute53(), regions.createLoadBalancing(region), region, regions);
+  }
+
+  /**
+   * Creates a HiveQueen which uses the given clients, e.g. to run against queen.local.LocalAws.
+   */
+  public HiveQueen(AmazonEC2 ec2, AmazonRoute53 route53, AmazonElasticLoadBalancing loadBalancing) {
+    this(ec2, route53, loadBalancing, null, null);
+  }
+
+  private HiveQueen(AmazonEC2 ec2, AmazonRoute53 route53, AmazonElasticLoadBalancing loadBalancing, Regions region,
+      RegionPool regions) {
+    this.ec2 = ec2;
+    this.route53 = route53;
+    this.loadBalancing = loadBalancing;
+    this.region = region;
+    this.regions = regions;
+    this.metrics = regions != null ? regions.getMetrics() : new MetricsHandler();
+
+    hostedZones = new HostedZoneCache(route53, Duration.ofMinutes(10));
+    records = new ZoneRecordIndex(route53, Duration.ofMinutes(10));
+
+    if (regions != null) {
+      regions.register(region, this);
+    }
+  }
+
+  /**
+   * The region this HiveQueen's EC2 and ELB calls go to, or null if it was created with its own clients.
+   */
+  public Regions getRegion() {
+    return region;
+  }
+
+  /**
+   * Returns a HiveQueen for the given region which shares this one's credentials and configuration. It is created the
+   * first time it's asked for and reused after that.
+   */
+  public HiveQueen inRegion(Regions region) {
+    if (region == this.region) {
+      return this;
+    }
+    checkState(regions != null, "This HiveQueen was created with its own clients, so it can't switch regions.");
+    return regions.get(region);
+  }
+
+  /**
+   * Runs the given query against each region in parallel and merges the results, in the order the regions are given.
+   */
+  public <T> XList<T> acrossRegions(Collection<Regions> regionsToQuery, Function<HiveQueen, List<T>> query) {
+    checkState(regions != null, "This HiveQueen was created with its own clients, so it can't switch regions.");
+
+    XList<CompletableFuture<List<T>>> futures = XList.create(regionsToQuery).map(
+        r -> CompletableFuture.supplyAsync(() -> query.apply(inRegion(r)), regions.getExecutor()));
+    XList<T> ret = XList.create();
+    for (CompletableFuture<List<T>> future : futures) {
+      try {
+        ret.addAll(future.join());
+      } catch (CompletionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw e;
+      }
+    }
+    return ret;
+  }
 
-    ec2 = AmazonEC2ClientBuilder.standard().withCredentials(provider).withRegion(Regions.US_EAST_2).build();
-    route53 = AmazonRoute53ClientBuilder.standard().withCredentials(provider).withRegion(Regions.US_EAST_2).build();
+  public XList<HiveInstance> getInstancesInRegions(Collection<Regions> regionsToQuery) {
+    return acrossRegions(regionsToQuery, HiveQueen::getInstances);
+  }
 
-    loadBalancing = AmazonElasticLoadBalancingClientBuilder.standard().withCredentials(provider)
-        .withRegion(Regions.US_EAST_2).build();
+  public XList<HiveLoadBalancer> getLoadBalancersInRegions(Collection<Regions> regionsToQuery) {
+    return acrossRegions(regionsToQuery, HiveQueen::getLoadBalancers);
+  }
+
+  /**
+   * AMIs are per region, so the same name can exist once in each region.
+   */
+  public XList<HiveImage> getImagesByNameInRegions(String imageName, Collection<Regions> regionsToQuery) {
+    return acrossRegions(regionsToQuery, queen -> {
+      XOptional<HiveImage> image = queen.getImageByName(imageName);
+      return image.isPresent() ? XList.of(image.get()) : XList.create();
+    });
   }
 
   public HiveInstance getInstance(String instanceId) {
@@ -104,115 +234,323 @@ public class HiveQueen {
   }
 
   public XOptional<HiveInstance> getInstanceOptional(String instanceId) {
-    return getInstances(new DescribeInstancesRequest().withInstanceIds(instanceId)).only();
+    return inventory.get(ResourceType.INSTANCES, "id:" + instanceId,
+        () -> getInstances(new DescribeInstancesRequest().withInstanceIds(instanceId)).only());
   }
 
   public HiveInstance getInstanceByName(String instanceName) {
-    return getInstances().filter(i -> i.getName().equals(instanceName)).only().get();
+    return getInstanceByNameOptional(instanceName).get();
+  }
+
+  public XOptional<HiveInstance> getInstanceByNameOptional(String instanceName) {
+    return inventory.get(ResourceType.INSTANCES, "name:" + instanceName,
+        () -> getInstances(activeInstancesRequest()
+            .withFilters(new Filter("tag:Name").withValues(instanceName))).only());
   }
 
   public XList<HiveInstance> getInstances() {
-    return getInstances(new DescribeInstancesRequest())
-        .filter(i -> !i.isTerminated());
+    XList<HiveInstance> ret = inventory.get(ResourceType.INSTANCES, "active",
+        () -> getInstances(activeInstancesRequest()));
+    return XList.create(ret);
+  }
+
+  /**
+   * Snapshots all active instances and indexes them by tag, so the snapshot can be queried repeatedly.
+   */
+  public InstanceIndex indexInstances() {
+    return new InstanceIndex(getInstances());
+  }
+
+  /**
+   * Finds the active instances matching the given query. To run several queries, use indexInstances() instead.
+   */
+  public XList<HiveInstance> getInstances(TagQuery query) {
+    return indexInstances().find(query);
+  }
+
+  /**
+   * Fetches all of the given instances, batching the ids into as few DescribeInstances calls as possible.
+   */
+  public XList<HiveInstance> getInstances(Collection<String> instanceIds) {
+    final XList<HiveInstance> ret = XList.create();
+    List<String> ids = ImmutableList.copyOf(new LinkedHashSet<>(instanceIds));
+    for (List<String> chunk : Lists.partition(ids, MAX_IDS_PER_DESCRIBE)) {
+      ret.addAll(getInstances(new DescribeInstancesRequest().withInstanceIds(chunk)));
+    }
+    return ret;
+  }
+
+  /**
+   * Like getInstances(Collection) but looks the ids up with an instance-id filter, so ids which EC2 doesn't know about
+   * yet are left out instead of failing the whole call.
+   */
+  XList<HiveInstance> findInstances(Collection<String> instanceIds) {
+    final XList<HiveInstance> ret = XList.create();
+    List<String> ids = ImmutableList.copyOf(new LinkedHashSet<>(instanceIds));
+    for (List<String> chunk : Lists.partition(ids, MAX_IDS_PER_DESCRIBE)) {
+      ret.addAll(getInstances(new DescribeInstancesRequest().withFilters(new Filter("instance-id").withValues(chunk))));
+    }
+    return ret;
+  }
+
+  /**
+   * Streams all instances which aren't terminated, fetching pages lazily.
+   */
+  public Stream<HiveInstance> streamInstances() {
+    return streamInstances(activeInstancesRequest(), DEFAULT_PAGE_SIZE, true);
+  }
+
+  /**
+   * Streams the results of the given request, following NextToken as the stream is consumed.
+   * 
+   * @param pageSize The MaxResults to request per page (5 - 1000). Ignored if the request lists instance ids.
+   * @param prefetch If true, the next page is fetched in the background while the current page is consumed. Close the
+   *                 stream if it's abandoned before the last page.
+   */
+  public Stream<HiveInstance> streamInstances(DescribeInstancesRequest request, int pageSize, boolean prefetch) {
+    InstancePager pager = new InstancePager(this, request, pageSize, prefetch);
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(pager, Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(pager::close);
+  }
+
+  /**
+   * The active instances matching all of the given filters, without going through the inventory cache.
+   */
+  XList<HiveInstance> getActiveInstances(Filter... filters) {
+    return getInstances(activeInstancesRequest().withFilters(filters));
   }
 
   private XList<HiveInstance> getInstances(DescribeInstancesRequest request) {
     final XList<HiveInstance> ret = XList.create();
-    ec2.describeInstances(request).getReservations().forEach(reservation -> {
-      reservation.getInstances().forEach(i -> {
-        ret.add(new HiveInstance(this, i));
-      });
-    });
+    // every page is consumed right away, so there's nothing for a prefetch to overlap with
+    new InstancePager(this, request, DEFAULT_PAGE_SIZE, false).forEachRemaining(ret::add);
     return ret;
   }
 
+  private DescribeInstancesRequest activeInstancesRequest() {
+    return new DescribeInstancesRequest().withFilters(new Filter("instance-state-name").withValues(
+        InstanceStateName.Pending.toString(),
+        InstanceStateName.Running.toString(),
+        InstanceStateName.ShuttingDown.toString(),
+        InstanceStateName.Stopping.toString(),
+        InstanceStateName.Stopped.toString()));
+  }
+
   public HiveInstance cloneInstance(String instanceId, boolean reboot, boolean useExistingImageIfAvailable,
       boolean copyTags) {
     Log.info("Cloning instance: " + instanceId);
 
-    HiveInstance existingInstance = getInstance(instanceId);
-    HiveInstance ret = cloneInternal(existingInstance, reboot, useExistingImageIfAvailable);
-
-    if (copyTags) {
-      Log.debug("Copying tags.");
-      existingInstance.getTags().forEach((k, v) -> {
-        if (!k.equalsIgnoreCase("Name")) {
-          ret.withTag(k, v);
-        }
-      });
-    }
-
-    return ret;
+    return timelines.operation("clone", instanceId, () -> {
+      HiveInstance existingInstance = getInstance(instanceId);
+      return cloneInternal(existingInstance, reboot, useExistingImageIfAvailable,
+          getCloneTags(existingInstance, copyTags));
+    });
   }
 
   private HiveInstance cloneInternal(HiveInstance existingInstance, boolean reboot,
-      boolean useExistingImageIfAvailable) {
-    String cloneName = existingInstance.getName() + " (Cloned)";
+      boolean useExistingImageIfAvailable, Map<String, String> tags) {
+    String cloneName = getCloneName(existingInstance);
 
+    String imageId = null;
+    boolean available = false;
     if (useExistingImageIfAvailable) {
-      XOptional<HiveImage> existingImage = getImageByName(existingInstance.getId());
+      XOptional<HiveImage> existingImage = timelines.phase("find image",
+          () -> images.findImage(existingInstance.getId()));
       if (existingImage.isPresent()) {
-        return launchInstanceFromImage(cloneName, existingInstance.getType(), existingImage.get().getId(),
-            XOptional.empty());
+        imageId = existingImage.get().getId();
+        available = existingImage.get().isAvailable();
       }
     }
 
-    Log.debug("Creating Image...");
-    CreateImageResult result = ec2.createImage(new CreateImageRequest()
-        .withInstanceId(existingInstance.getId())
-        .withName(existingInstance.getId())
-        .withNoReboot(!reboot));
+    if (imageId == null) {
+      imageId = timelines.phase("create image", () -> images.bake(existingInstance, reboot));
+    }
 
-    final String imageId = result.getImageId();
+    if (!available) {
+      String id = imageId;
+      CompletableFuture<HiveImage> future = imageWatcher.awaitAvailable(id);
+      timelines.phase("await image", () -> {
+        try {
+          future.get(IMAGE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          future.cancel(false);
+          throw new RuntimeException(
+              "Image " + id + " wasn't available after " + IMAGE_TIMEOUT.toMinutes() + " minutes.");
+        } catch (ExecutionException e) {
+          Throwables.throwIfUnchecked(e.getCause());
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          future.cancel(false);
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      });
+    }
 
-    Await.every(Duration.ofSeconds(5))
-        .timeout(Duration.ofMinutes(15))
-        .verbose("Image Creation")
-        .await(() -> getImage(imageId).isAvailable());
+    return launchInstanceFromImage(cloneName, existingInstance.getType(), imageId, XOptional.empty(), tags);
+  }
 
-    return launchInstanceFromImage(cloneName, existingInstance.getType(), imageId, XOptional.empty());
+  String getCloneName(HiveInstance instance) {
+    return instance.getName() + " (Cloned)";
+  }
+
+  /**
+   * The tags to put on a clone of the given instance at launch. The Name is set separately, and tags with the reserved
+   * aws: prefix can't be set by us at all.
+   */
+  Map<String, String> getCloneTags(HiveInstance instance, boolean copyTags) {
+    if (!copyTags) {
+      return ImmutableMap.of();
+    }
+    Map<String, String> ret = new LinkedHashMap<>();
+    instance.getTagMap().forEach((k, v) -> {
+      if (!k.equalsIgnoreCase("Name") && !k.startsWith("aws:")) {
+        ret.put(k, v);
+      }
+    });
+    return ret;
   }
 
   public HiveInstance launchInstanceFromImage(String instanceName, InstanceType type, String imageId,
       XOptional<String> iamRole) {
+    return launchInstanceFromImage(instanceName, type, imageId, iamRole, ImmutableMap.of());
+  }
+
+  /**
+   * Launches an instance with the given name and tags. All of the tags are applied by the RunInstances call itself.
+   */
+  public HiveInstance launchInstanceFromImage(String instanceName, InstanceType type, String imageId,
+      XOptional<String> iamRole, Map<String, String> tags) {
+    Map<String, String> allTags = new LinkedHashMap<>(tags);
+    allTags.put("Name", instanceName);
+    return timelines.operation("launch", instanceName, () -> {
+      HiveInstance ret = timelines.phase("launch", () -> only(runInstances(1, type, imageId, iamRole, allTags)));
+      return ret.awaitIp();
+    });
+  }
+
+  /**
+   * Launches one instance per name with a single RunInstances call and waits for all of them to get an IP. Use
+   * async().launchInstancesFromImage() to handle each instance as soon as it's ready.
+   */
+  public XList<HiveInstance> launchInstancesFromImage(List<String> instanceNames, InstanceType type, String imageId,
+      XOptional<String> iamRole) {
+    return launchInstancesFromImage(instanceNames, type, imageId, iamRole, ImmutableMap.of());
+  }
+
+  public XList<HiveInstance> launchInstancesFromImage(List<String> instanceNames, InstanceType type, String imageId,
+      XOptional<String> iamRole, Map<String, String> tags) {
+    XList<CompletableFuture<HiveInstance>> futures = async.launchInstancesFromImage(instanceNames, type, imageId,
+        iamRole, tags);
+    Await.every(Duration.ofSeconds(2)).timeout(Duration.ofMinutes(20)).verbose("Instance IPs")
+        .await(() -> futures.stream().allMatch(CompletableFuture::isDone));
+    return futures.map(CompletableFuture::join);
+  }
+
+  /**
+   * Sends a single RunInstances call for all of the given names and returns immediately.
+   *
+   * The given tags are applied at launch, as is the Name if every name is the same. Otherwise each instance is named
+   * with its own CreateTags call right after launching, since TagSpecifications apply the same tags to every instance
+   * in the request.
+   */
+  XList<HiveInstance> runNamedInstances(List<String> instanceNames, InstanceType type, String imageId,
+      XOptional<String> iamRole, Map<String, String> tags) {
+    checkArgument(!instanceNames.isEmpty(), "No instance names given.");
+
+    boolean sameName = ImmutableSet.copyOf(instanceNames).size() == 1;
+    Map<String, String> launchTags = new LinkedHashMap<>(tags);
+    if (sameName) {
+      launchTags.put("Name", instanceNames.get(0));
+    }
+    XList<HiveInstance> ret = runInstances(instanceNames.size(), type, imageId, iamRole, launchTags);
+    if (!sameName) {
+      for (int i = 0; i < ret.size(); i++) {
+        ret.set(i, ret.get(i).withTag("Name", instanceNames.get(i)));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Sends the RunInstances call for exactly count instances, tagging them at launch, and returns immediately.
+   */
+  XList<HiveInstance> runInstances(int count, InstanceType type, String imageId, XOptional<String> iamRole,
+      Map<String, String> tags) {
     imageId = checkNotEmpty(normalize(imageId));
 
-    Log.debug("Launching instance.");
+    Log.debug("Launching " + count + " instance(s).");
     RunInstancesRequest request = new RunInstancesRequest()
-        .withMinCount(1).withMaxCount(1)
+        .withMinCount(count).withMaxCount(count)
         .withInstanceType(type)
         .withImageId(imageId)
         .withMonitoring(true);
     iamRole.ifPresent(s -> {
       request.withIamInstanceProfile(new IamInstanceProfileSpecification().withArn(iamRole.get()));
     });
+    if (!tags.isEmpty()) {
+      request.withTagSpecifications(new TagSpecification()
+          .withResourceType(com.amazonaws.services.ec2.model.ResourceType.Instance)
+          .withTags(XList.create(tags.entrySet()).map(e -> new Tag(e.getKey(), e.getValue()))));
+    }
 
     Reservation reservation = ec2.runInstances(request).getReservation();
+    inventory.invalidate(ResourceType.INSTANCES);
 
-    HiveInstance ret = new HiveInstance(this, only(reservation.getInstances()));
-    Log.debug("New Instance Created!  id = " + ret.getId());
-
-    // TODO can sometimes run into "The instance ID 'i-xyz' does not exist"
-    // for now we'll add a hacky sleep
-    sleep(2000);
-
-    ret.awaitIp();
-
-    ret.withTag("Name", instanceName);
+    XList<HiveInstance> ret = XList.create(reservation.getInstances()).map(i -> new HiveInstance(this, i));
+    Log.debug("New Instance(s) Created!  ids = " + ret.map(HiveInstance::getId));
+    return ret;
+  }
 
-    return getInstance(ret.getId());
+  /**
+   * Puts all of the given tags on all of the given resources (instances, images, volumes, etc.) with as few CreateTags
+   * calls as possible.
+   */
+  public void tagResources(Collection<String> resourceIds, Map<String, String> tags) {
+    if (resourceIds.isEmpty() || tags.isEmpty()) {
+      return;
+    }
+    XList<Tag> ec2Tags = XList.create(tags.entrySet()).map(e -> new Tag(e.getKey(), normalize(e.getValue())));
+    List<String> ids = ImmutableList.copyOf(new LinkedHashSet<>(resourceIds));
+    for (List<String> chunk : Lists.partition(ids, MAX_RESOURCES_PER_TAG_CALL)) {
+      // usually called right after the resources were created, so they may not be visible yet
+      ec2.createTags(AdaptiveRetryPolicy.followsCreate(
+          new CreateTagsRequest().withResources(chunk).withTags(ec2Tags)));
+    }
+    inventory.invalidate(ResourceType.INSTANCES);
+    inventory.invalidate(ResourceType.IMAGES);
   }
 
+  /**
+   * Always goes to EC2 (never the inventory cache), so it can be used to poll an image's state.
+   */
   public HiveImage getImage(String imageId) {
     Image ret = only(ec2.describeImages(new DescribeImagesRequest().withImageIds(imageId)).getImages());
     return new HiveImage(ret);
   }
 
+  /**
+   * Looks the ids up with an image-id filter, so images which EC2 doesn't know about yet are left out instead of
+   * failing the whole call.
+   */
+  XList<HiveImage> findImages(Collection<String> imageIds) {
+    final XList<HiveImage> ret = XList.create();
+    List<String> ids = ImmutableList.copyOf(new LinkedHashSet<>(imageIds));
+    for (List<String> chunk : Lists.partition(ids, MAX_IDS_PER_DESCRIBE)) {
+      ret.addAll(XList.create(ec2.describeImages(new DescribeImagesRequest()
+          .withFilters(new Filter("image-id").withValues(chunk))).getImages()).map(HiveImage::new));
+    }
+    return ret;
+  }
+
   public XOptional<HiveImage> getImageByName(String imageName) {
-    DescribeImagesRequest request = new DescribeImagesRequest()
-        .withFilters(new Filter().withName("name").withValues(imageName));
-    List<Image> images = ec2.describeImages(request).getImages();
-    return XList.create(images).map(HiveImage::new).only();
+    return inventory.get(ResourceType.IMAGES, "name:" + imageName, () -> {
+      DescribeImagesRequest request = new DescribeImagesRequest()
+          .withFilters(new Filter().withName("name").withValues(imageName));
+      List<Image> images = ec2.describeImages(request).getImages();
+      return XList.create(images).map(HiveImage::new).only();
+    });
   }
 
   public void createARecord(String key, String value, boolean awaitDNSPropagation) {
@@ -220,82 +558,161 @@ public class HiveQueen {
   }
 
   public void createDNSRecord(String key, String value, boolean awaitDNSPropagation) {
+    createDNSRecord(key, value, awaitDNSPropagation, getRecordType(value));
+  }
+
+  RRType getRecordType(String value) {
     boolean isIP = Matchers.javaDigit().or(CharMatcher.is('.')).matchesAllOf(value);
-    createDNSRecord(key, value, awaitDNSPropagation, isIP ? RRType.A : RRType.CNAME);
+    return isIP ? RRType.A : RRType.CNAME;
   }
 
   private void createDNSRecord(String key, String value, boolean awaitDNSPropagation, RRType type) {
+    XOptional<String> changeId = upsertDNSRecord(key, value, type);
+
+    if (awaitDNSPropagation && changeId.isPresent()) {
+      awaitDNSChanges(XList.of(changeId.get()));
+    }
+  }
+
+  /**
+   * Sends the UPSERT for the given record and returns the id of the resulting change, or nothing if the record already
+   * had this value and no change was needed.
+   */
+  XOptional<String> upsertDNSRecord(String key, String value, RRType type) {
     key = checkNotEmpty(normalize(key), "Missing DNS key");
     value = checkNotEmpty(normalize(value), "Missing DNS value");
 
+    HostedZone zone = getHostedZone(key);
+    ResourceRecordSet record = createRecordSet(key, value, type);
+    if (records.isCurrent(zone, record)) {
+      Log.debug(format("dns record is already correct: {0}={1}", key, value));
+      return XOptional.empty();
+    }
+
     Log.debug(format("Creating dns record: {0}={1}", key, value));
+    return XOptional.of(sendDNSChanges(zone, XList.of(new Change(ChangeAction.UPSERT, record))));
+  }
+
+  /**
+   * Sends the changes as one ChangeResourceRecordSets call and keeps the zone's record index in step with them.
+   */
+  String sendDNSChanges(HostedZone zone, List<Change> changes) {
+    ChangeResourceRecordSetsResult result;
+    try {
+      result = route53.changeResourceRecordSets(new ChangeResourceRecordSetsRequest()
+          .withHostedZoneId(zone.getId())
+          .withChangeBatch(new ChangeBatch().withChanges(changes)));
+    } catch (RuntimeException e) {
+      // the rejected change may mean our copy of the zone is out of date
+      records.invalidate(zone);
+      throw e;
+    }
+    records.onChanged(zone, changes);
+    return result.getChangeInfo().getId();
+  }
 
-    HostedZone zone = getHostedZoneByName(getDomain(key));
+  /**
+   * Whether the record index says the zone already has exactly this record set. Unlike upsertDNSRecord(), this isn't
+   * confirmed with Route53, so that checking a large batch doesn't cost a call per record.
+   */
+  boolean isDNSRecordCurrentInIndex(HostedZone zone, ResourceRecordSet record) {
+    return records.isCurrentInIndex(zone, record);
+  }
 
-    ChangeBatch change = new ChangeBatch();
-    change.withChanges(new Change(ChangeAction.UPSERT,
-        new ResourceRecordSet(key, type)
-            .withResourceRecords(new ResourceRecord(value))
-            .withTTL(Duration.ofMinutes(5).getSeconds())));
+  ResourceRecordSet createRecordSet(String key, String value, RRType type) {
+    return new ResourceRecordSet(key, type)
+        .withResourceRecords(new ResourceRecord(value))
+        .withTTL(Duration.ofMinutes(5).getSeconds());
+  }
 
-    ChangeResourceRecordSetsResult result = route53.changeResourceRecordSets(new ChangeResourceRecordSetsRequest()
-        .withHostedZoneId(zone.getId())
-        .withChangeBatch(change));
+  boolean isDNSChangeInSync(String changeId) {
+    ChangeStatus status = ChangeStatus
+        .valueOf(route53.getChange(new GetChangeRequest(changeId)).getChangeInfo().getStatus());
+    return status == ChangeStatus.INSYNC;
+  }
 
-    if (awaitDNSPropagation) {
-      final String changeId = result.getChangeInfo().getId();
-      Await.every(Duration.ofSeconds(5)).timeout(Duration.ofMinutes(20)).verbose("createDNSRecord").await(() -> {
-        ChangeStatus status = ChangeStatus
-            .valueOf(route53.getChange(new GetChangeRequest(changeId)).getChangeInfo().getStatus());
-        return status == ChangeStatus.INSYNC;
-      });
-      Log.debug("Record confirmed.");
-    }
+  /**
+   * Waits for all of the given changes together, only polling the ones which haven't propagated yet.
+   */
+  void awaitDNSChanges(Collection<String> changeIds) {
+    Set<String> pending = new LinkedHashSet<>(changeIds);
+    Await.every(Duration.ofSeconds(5)).timeout(Duration.ofMinutes(20)).verbose("createDNSRecord").await(() -> {
+      pending.removeIf(this::isDNSChangeInSync);
+      return pending.isEmpty();
+    });
+    Log.debug("Record confirmed.");
   }
 
+  /**
+   * Creates a batch of DNS changes which will be sent with as few ChangeResourceRecordSets calls as possible.
+   */
+  public DNSBatch dnsBatch() {
+    return new DNSBatch(this);
+  }
+
+  /**
+   * Whether there is a record of any type with the given name. Served from the zone's record index.
+   */
   public boolean doesDNSRecordExist(String key) {
-    HostedZone zone = getHostedZoneByName(getDomain(key));
+    return !getDNSRecords(key).isEmpty();
+  }
+
+  /**
+   * All of the record sets with the given name, of any type. Served from the zone's record index, which is loaded once
+   * and then kept up to date with our own changes.
+   */
+  public XList<ResourceRecordSet> getDNSRecords(String key) {
+    return records.getRecords(getHostedZone(key), key);
+  }
 
-    ListResourceRecordSetsRequest listRequest = new ListResourceRecordSetsRequest(zone.getId())
-        .withStartRecordName(key).withStartRecordType(RRType.A).withMaxItems("1");
-    return XList.create(route53.listResourceRecordSets(listRequest).getResourceRecordSets())
-        .map(ResourceRecordSet::getName).log()
-        .any(name -> {
-          return normalizeDomain(name).equals(key);
-        });
+  public XOptional<ResourceRecordSet> getDNSRecord(String key, RRType type) {
+    return records.getRecord(getHostedZone(key), key, type);
   }
 
   public void deleteDNSRecord(String key) {
     Log.debug(format("Deleting dns record: {0}", key));
 
-    HostedZone zone = getHostedZoneByName(getDomain(key));
-
-    ListResourceRecordSetsRequest listRequest = new ListResourceRecordSetsRequest(zone.getId())
-        .withStartRecordName(key).withStartRecordType(RRType.A).withMaxItems("1");
-    ResourceRecordSet record = XList.create(route53.listResourceRecordSets(listRequest)
-        .getResourceRecordSets()).only().get();
-    checkState(normalizeDomain(record.getName()).equals(key),
-        "Could not find record: " + key + " -- first record was: " + record.getName());
+    HostedZone zone = getHostedZone(key);
+    try {
+      sendDNSChanges(zone, XList.of(new Change(ChangeAction.DELETE, getARecord(zone, key))));
+    } catch (InvalidChangeBatchException e) {
+      // a DELETE has to match the record exactly, so our copy of it was out of date. Try again with the live one.
+      Log.debug(format("Retrying delete of {0} with the live record: {1}", key, e.getErrorMessage()));
+      XOptional<ResourceRecordSet> live = records.getLiveRecord(zone, key, RRType.A.toString());
+      checkState(live.isPresent(), "Could not find record: " + key);
+      sendDNSChanges(zone, XList.of(new Change(ChangeAction.DELETE, live.get())));
+    }
+  }
 
-    route53.changeResourceRecordSets(new ChangeResourceRecordSetsRequest()
-        .withHostedZoneId(zone.getId())
-        .withChangeBatch(new ChangeBatch()
-            .withChanges(new Change(ChangeAction.DELETE, record))));
+  /**
+   * The A record with the given name. If the record index doesn't have it, Route53 is asked in case the record was
+   * created since the zone was loaded.
+   */
+  ResourceRecordSet getARecord(HostedZone zone, String key) {
+    XOptional<ResourceRecordSet> ret = records.getRecord(zone, key, RRType.A);
+    if (!ret.isPresent()) {
+      ret = records.getLiveRecord(zone, key, RRType.A.toString());
+    }
+    checkState(ret.isPresent(), "Could not find record: " + key);
+    return ret.get();
   }
 
-  private String getDomain(String key) {
-    List<String> m = Splitter.on('.').splitToList(key);
-    return m.get(m.size() - 2) + "." + m.get(m.size() - 1);
+  /**
+   * The value of the A record with the given name, if there is one.
+   */
+  XOptional<String> getARecordValue(String key) {
+    XOptional<ResourceRecordSet> record = getDNSRecord(key, RRType.A);
+    if (!record.isPresent() || record.get().getResourceRecords().isEmpty()) {
+      return XOptional.empty();
+    }
+    return XOptional.of(record.get().getResourceRecords().get(0).getValue());
   }
 
-  private HostedZone getHostedZoneByName(String name) {
-    return XList.create(route53.listHostedZones(new ListHostedZonesRequest()).getHostedZones())
-        .filter(z -> {
-          return normalizeDomain(z.getName()).equals(name);
-        }).only().get();
+  HostedZone getHostedZone(String key) {
+    return hostedZones.getZoneForRecord(key);
   }
 
-  private String normalizeDomain(String domain) {
+  static String normalizeDomain(String domain) {
     if (domain.endsWith(".")) {
       return domain.substring(0, domain.length() - 1);
     }
@@ -303,8 +720,9 @@ public class HiveQueen {
   }
 
   public String getTargetGroup(String name) {
-    List<TargetGroup> targetGroups = loadBalancing
-        .describeTargetGroups(new DescribeTargetGroupsRequest().withNames(name)).getTargetGroups();
+    List<TargetGroup> targetGroups = inventory.get(ResourceType.TARGET_GROUPS, "name:" + name,
+        () -> loadBalancing.describeTargetGroups(new DescribeTargetGroupsRequest().withNames(name))
+            .getTargetGroups());
     if (targetGroups.isEmpty()) {
       return "";
     } else {
@@ -322,6 +740,7 @@ public class HiveQueen {
         .withHealthCheckEnabled(true)
         .withHealthCheckProtocol(ProtocolEnum.HTTPS)
         .withHealthCheckPath(healthCheckPath));
+    inventory.invalidate(ResourceType.TARGET_GROUPS);
 
     return only(result.getTargetGroups()).getTargetGroupArn();
   }
@@ -336,6 +755,7 @@ public class HiveQueen {
         .withSubnets(subnets.map(s -> s.getSubnetId())));
 
     LoadBalancer ret = only(result.getLoadBalancers());
+    inventory.invalidate(ResourceType.LOAD_BALANCERS);
 
     checkState(!ret.getDNSName().isEmpty());
 
@@ -366,47 +786,168 @@ public class HiveQueen {
                 .withProtocol("HTTPS")
                 .withPort("443")
                 .withStatusCode(RedirectActionStatusCodeEnum.HTTP_301))));
+
+    // the target group is now attached to the load balancer
+    inventory.invalidate(ResourceType.TARGET_GROUPS);
   }
 
   public void registerTargets(String targetGroupId, XList<String> instanceIds) {
     loadBalancing.registerTargets(new RegisterTargetsRequest()
         .withTargetGroupArn(targetGroupId)
         .withTargets(instanceIds.map(instanceId -> new TargetDescription().withId(instanceId).withPort(443))));
+    inventory.invalidate(ResourceType.TARGET_GROUPS);
+    targetHealth.invalidate(targetGroupId);
   }
 
   public void deregisterTargets(String targetGroupId, XList<String> instanceIds) {
     loadBalancing.deregisterTargets(new DeregisterTargetsRequest()
         .withTargetGroupArn(targetGroupId)
         .withTargets(instanceIds.map(instanceId -> new TargetDescription().withId(instanceId).withPort(443))));
+    inventory.invalidate(ResourceType.TARGET_GROUPS);
+    targetHealth.invalidate(targetGroupId);
   }
 
   public HiveVPC getVPC(String name) {
-    return XList.create(ec2.describeVpcs(new DescribeVpcsRequest()).getVpcs())
-        .map(HiveVPC::new)
+    XList<Vpc> vpcs = inventory.get(ResourceType.VPCS, "name:" + name,
+        () -> XList.create(ec2.describeVpcs(new DescribeVpcsRequest()
+            .withFilters(new Filter("tag:Name").withValues(name))).getVpcs()));
+    return vpcs.map(HiveVPC::new)
         .filter(vpc -> vpc.getName().equals(name))
         .only().get();
   }
 
   public XList<Subnet> getSubnets(String vpcId) {
-    return XList.create(ec2.describeSubnets(new DescribeSubnetsRequest()).getSubnets())
-        .filter(s -> s.getVpcId().equals(vpcId));
+    XList<Subnet> ret = inventory.get(ResourceType.SUBNETS, "vpc:" + vpcId,
+        () -> XList.create(ec2.describeSubnets(new DescribeSubnetsRequest()
+            .withFilters(new Filter("vpc-id").withValues(vpcId))).getSubnets()));
+    return XList.create(ret);
   }
 
   public HiveLoadBalancer getLoadBalancer(String name) {
-    List<LoadBalancer> loadBalancers = loadBalancing
-        .describeLoadBalancers(new DescribeLoadBalancersRequest().withNames(name)).getLoadBalancers();
+    List<LoadBalancer> loadBalancers = inventory.get(ResourceType.LOAD_BALANCERS, "name:" + name,
+        () -> loadBalancing.describeLoadBalancers(new DescribeLoadBalancersRequest().withNames(name))
+            .getLoadBalancers());
     return new HiveLoadBalancer(this, loadBalancers.get(0));
   }
 
   public XList<HiveLoadBalancer> getLoadBalancers() {
-    return XList.create(loadBalancing.describeLoadBalancers(new DescribeLoadBalancersRequest()).getLoadBalancers())
-        .map(b -> new HiveLoadBalancer(this, b));
+    List<LoadBalancer> loadBalancers = inventory.get(ResourceType.LOAD_BALANCERS, "all",
+        () -> loadBalancing.describeLoadBalancers(new DescribeLoadBalancersRequest()).getLoadBalancers());
+    return XList.create(loadBalancers).map(b -> new HiveLoadBalancer(this, b));
+  }
+
+  /**
+   * Serves repeated lookups (instances, images, VPCs, subnets, load balancers and target groups) from memory. Caching
+   * is off by default; pass InventoryCache.withDefaults() to turn it on.
+   */
+  public HiveQueen withInventoryCache(InventoryCache inventory) {
+    this.inventory = inventory;
+    return this;
+  }
+
+  public InventoryCache getInventoryCache() {
+    return inventory;
+  }
+
+  /**
+   * Counts and latencies of every AWS call made by this HiveQueen (and the HiveQueens for its other regions), per
+   * operation. Clients passed in by the caller aren't instrumented unless they report here themselves, like LocalAws.
+   */
+  public ApiMetrics getMetrics() {
+    return metrics.getApiMetrics();
+  }
+
+  /**
+   * Sends a record of every AWS call to the given sink as well as to getMetrics().
+   */
+  public HiveQueen addMetricsSink(MetricsSink sink) {
+    metrics.addSink(sink);
+    return this;
+  }
+
+  /**
+   * Listens to the phases of long-running operations (clone, launch, warm start, stop, start, changeInstanceType,
+   * hardReboot). Use a TimelineReport to see where the time of a whole fleet run went.
+   */
+  public HiveQueen addTimelineListener(TimelineListener listener) {
+    timelines.addListener(listener);
+    return this;
+  }
+
+  public void removeTimelineListener(TimelineListener listener) {
+    timelines.removeListener(listener);
+  }
+
+  Timelines getTimelines() {
+    return timelines;
+  }
+
+  TargetHealthCache getTargetHealthCache() {
+    return targetHealth;
+  }
+
+  /**
+   * Shared poller that all instance waits in this HiveQueen go through.
+   */
+  public InstanceWatcher getInstanceWatcher() {
+    return instanceWatcher;
+  }
+
+  /**
+   * Shared poller that all image waits in this HiveQueen go through.
+   */
+  public ImageWatcher getImageWatcher() {
+    return imageWatcher;
+  }
+
+  /**
+   * Compares the given spec with the live instances, DNS records and target registrations. See FleetReconciler.
+   */
+  public FleetReconciler reconciler(FleetSpec spec) {
+    return new FleetReconciler(this, spec);
+  }
+
+  /**
+   * Runs operations across the given instances in parallel. See FleetExecutor.
+   */
+  public FleetExecutor fleet(Iterable<HiveInstance> instances) {
+    return new FleetExecutor(instances);
+  }
+
+  /**
+   * Tracks, pre-bakes and cleans up the images that clones are launched from.
+   */
+  public ImageManager images() {
+    return images;
+  }
+
+  /**
+   * The pool of stopped instances of the given image and type. There is one pool per image and type; it stays empty
+   * until its size is set.
+   */
+  public WarmPool warmPool(String imageId, InstanceType type) {
+    return warmPools.computeIfAbsent(WarmPool.key(imageId, type), k -> new WarmPool(this, imageId, type));
+  }
+
+  void removeWarmPool(String key, WarmPool pool) {
+    warmPools.remove(key, pool);
+  }
+
+  /**
+   * Non-blocking versions of the long-running lifecycle operations.
+   */
+  public HiveQueenAsync async() {
+    return async;
   }
 
   protected AmazonEC2 getEC2() {
     return ec2;
   }
 
+  protected AmazonRoute53 getRoute53() {
+    return route53;
+  }
+
   public AmazonElasticLoadBalancing getLoadBalancing() {
     return loadBalancing;
   }
@@ -420,6 +961,11 @@ public class HiveQueen {
 
     // queen.getInstance("i-02329771198210821").withTag("Name", "test123");
 
+    // queen.getInstancesInRegions(XList.of(Regions.US_EAST_2, Regions.US_WEST_2)).log();
+
+    // queen.images().maxAge(Duration.ofHours(6)).prebake(queen.getInstanceByName("qa1.ender.com").getId(),
+    // Duration.ofHours(2));
+
     // for (String key : XList.of("qa21.ender.com")) {
     // HiveInstance instance = queen.getInstanceByName(key);
     // instance.routeDomainToInstance(key);
@@ -432,12 +978,17 @@ public class HiveQueen {
 
     // queen.getInstanceByName("qa5.ender.com").reboot();
 
-    // count(1, 20).concurrent().forEach(i -> {
-    // String domain = "qa" + i + ".ender.com";
-    // HiveInstance instance = queen.getInstanceByName(domain);
+    // FleetSpec qa = new FleetSpec().instances(count(1, 20).map(i -> "qa" + i + ".ender.com"))
+    // .type(InstanceType.T3Small).routeNamesToInstances().loadBalancer("api-ender-com");
+    // queen.reconciler(qa).plan().log();
+    // queen.reconciler(qa).apply().checkSuccess();
+
+    // queen.fleet(count(1, 20).map(i -> queen.getInstanceByName("qa" + i + ".ender.com")))
+    // .concurrency(10).batchSize(10)
+    // .forEach(instance -> {
     // instance.changeInstanceType(InstanceType.T3Small);
-    // queen.createDNSRecord(domain, queen.getInstanceByName(domain).getIp(), true);
-    // });
+    // queen.createDNSRecord(instance.getName(), queen.getInstance(instance.getId()).getIp(), true);
+    // }).checkSuccess();
 
     // count(1, 20).concurrent().forEach(i -> {
     // String domain = "qa" + i + ".ender.com";
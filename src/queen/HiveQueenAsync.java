@@ -0,0 +1,275 @@
+package queen;
+
+import static ox.util.Utils.checkNotEmpty;
+import static ox.util.Utils.normalize;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.ModifyInstanceAttributeRequest;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+import queen.InventoryCache.ResourceType;
+
+/**
+ * CompletableFuture based versions of the long-running HiveQueen operations.
+ *
+ * Individual AWS calls run on a small pool of worker threads. The long waits (image creation, instance state, IPs, DNS
+ * propagation, target health) never park a thread: instance waits go through the shared InstanceWatcher and the rest
+ * are re-scheduled polls. This lets a single process drive hundreds of concurrent lifecycle operations.
+ */
+public class HiveQueenAsync {
+
+  private static final int WORKER_THREADS = 16;
+
+  private final HiveQueen queen;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(WORKER_THREADS,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-async-%d").build());
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-async-scheduler").build());
+
+  HiveQueenAsync(HiveQueen queen) {
+    this.queen = queen;
+  }
+
+  public CompletableFuture<HiveInstance> launchInstanceFromImage(String instanceName, InstanceType type,
+      String imageId, XOptional<String> iamRole) {
+    return launchInstanceFromImage(instanceName, type, imageId, iamRole, ImmutableMap.of());
+  }
+
+  public CompletableFuture<HiveInstance> launchInstanceFromImage(String instanceName, InstanceType type,
+      String imageId, XOptional<String> iamRole, Map<String, String> tags) {
+    return launchInstancesFromImage(XList.of(instanceName), type, imageId, iamRole, tags).get(0);
+  }
+
+  /**
+   * Launches one instance per name with a single RunInstances call. The future for each instance completes as soon as
+   * that instance has an IP, so callers can start using the first instances while the rest are still coming up.
+   */
+  public XList<CompletableFuture<HiveInstance>> launchInstancesFromImage(List<String> instanceNames,
+      InstanceType type, String imageId, XOptional<String> iamRole) {
+    return launchInstancesFromImage(instanceNames, type, imageId, iamRole, ImmutableMap.of());
+  }
+
+  public XList<CompletableFuture<HiveInstance>> launchInstancesFromImage(List<String> instanceNames,
+      InstanceType type, String imageId, XOptional<String> iamRole, Map<String, String> tags) {
+    CompletableFuture<XList<HiveInstance>> launched = call(
+        () -> queen.runNamedInstances(instanceNames, type, imageId, iamRole, tags));
+
+    XList<CompletableFuture<HiveInstance>> ret = XList.create();
+    for (int i = 0; i < instanceNames.size(); i++) {
+      final int index = i;
+      ret.add(launched.thenCompose(instances -> awaitIp(instances.get(index).getId())));
+    }
+    return ret;
+  }
+
+  public CompletableFuture<HiveInstance> cloneInstance(String instanceId, boolean reboot,
+      boolean useExistingImageIfAvailable, boolean copyTags) {
+    Log.info("Cloning instance: " + instanceId);
+
+    return call(() -> queen.getInstance(instanceId)).thenCompose(existingInstance -> {
+      return getCloneImage(existingInstance, reboot, useExistingImageIfAvailable)
+          .thenCompose(imageId -> launchInstanceFromImage(queen.getCloneName(existingInstance),
+              existingInstance.getType(), imageId, XOptional.empty(), queen.getCloneTags(existingInstance, copyTags)));
+    });
+  }
+
+  private CompletableFuture<String> getCloneImage(HiveInstance existingInstance, boolean reboot,
+      boolean useExistingImageIfAvailable) {
+    return call(() -> {
+      if (useExistingImageIfAvailable) {
+        XOptional<HiveImage> existingImage = queen.images().findImage(existingInstance.getId());
+        if (existingImage.isPresent()) {
+          return existingImage.get();
+        }
+      }
+      return null;
+    }).thenCompose(image -> {
+      if (image != null && image.isAvailable()) {
+        return CompletableFuture.completedFuture(image.getId());
+      }
+      CompletableFuture<String> imageId = image != null ? CompletableFuture.completedFuture(image.getId())
+          : call(() -> queen.images().bake(existingInstance, reboot));
+      return imageId.thenCompose(this::awaitImage).thenApply(HiveImage::getId);
+    });
+  }
+
+  /**
+   * Starts creating an image of each of the given instances at once. The future for each image completes as soon as
+   * that image is available. All of the pending images are watched together, with one DescribeImages call per tick.
+   */
+  public XList<CompletableFuture<HiveImage>> createImages(Collection<HiveInstance> instances, boolean reboot) {
+    return XList.create(instances).map(instance -> call(() -> queen.images().bake(instance, reboot))
+        .thenCompose(this::awaitImage));
+  }
+
+  /**
+   * Attempts to stop normally. If the instance isn't stopped after 1 minute, this will attempt to force-stop the
+   * instance.
+   */
+  public CompletableFuture<HiveInstance> stop(HiveInstance instance) {
+    return mutate(() -> queen.getEC2().stopInstances(new StopInstancesRequest(XList.of(instance.getId()))))
+        .thenCompose(r -> awaitState(instance.getId(), InstanceStateName.Stopped, Duration.ofMinutes(1)))
+        .handle((stopped, e) -> {
+          if (e == null) {
+            return CompletableFuture.completedFuture(stopped);
+          }
+          if (!(unwrap(e) instanceof TimeoutException)) {
+            return CompletableFuture.<HiveInstance>failedFuture(unwrap(e));
+          }
+          Log.debug("Stopping with force.");
+          return mutate(() -> queen.getEC2()
+              .stopInstances(new StopInstancesRequest(XList.of(instance.getId())).withForce(true)))
+                  .thenCompose(r -> awaitState(instance.getId(), InstanceStateName.Stopped, Duration.ofMinutes(9)));
+        })
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Starts the instance. The returned future completes once it is running.
+   */
+  public CompletableFuture<HiveInstance> start(HiveInstance instance) {
+    return mutate(() -> queen.getEC2().startInstances(new StartInstancesRequest(XList.of(instance.getId()))))
+        .thenCompose(r -> awaitState(instance.getId(), InstanceStateName.Running, Duration.ofMinutes(10)));
+  }
+
+  public CompletableFuture<HiveInstance> changeInstanceType(HiveInstance instance, InstanceType type) {
+    if (instance.getType() == type) {
+      return CompletableFuture.completedFuture(instance);
+    }
+    return stop(instance)
+        .thenCompose(stopped -> mutate(() -> queen.getEC2().modifyInstanceAttribute(
+            new ModifyInstanceAttributeRequest()
+                .withInstanceId(instance.getId())
+                .withInstanceType(type.toString()))))
+        .thenCompose(r -> mutate(
+            () -> queen.getEC2().startInstances(new StartInstancesRequest(XList.of(instance.getId())))))
+        .thenCompose(r -> awaitIp(instance.getId()));
+  }
+
+  public CompletableFuture<Void> createDNSRecord(String key, String value, boolean awaitDNSPropagation) {
+    return call(() -> queen.upsertDNSRecord(key, value, queen.getRecordType(checkNotEmpty(normalize(value)))))
+        .thenCompose(changeId -> {
+          if (!awaitDNSPropagation || !changeId.isPresent()) {
+            return CompletableFuture.completedFuture(null);
+          }
+          return poll(() -> queen.isDNSChangeInSync(changeId.get()), Duration.ofSeconds(5), Duration.ofMinutes(20));
+        });
+  }
+
+  public CompletableFuture<Void> register(HiveLoadBalancer loadBalancer, HiveInstance instance,
+      boolean awaitHealthy) {
+    return call(() -> {
+      loadBalancer.register(instance, false);
+      return null;
+    }).thenCompose(v -> {
+      if (!awaitHealthy) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return poll(() -> loadBalancer.getTargetHealth(instance) == TargetHealthStateEnum.Healthy,
+          Duration.ofSeconds(2), Duration.ofHours(1));
+    });
+  }
+
+  public CompletableFuture<Void> deregister(HiveLoadBalancer loadBalancer, HiveInstance instance,
+      boolean awaitFullyDrained) {
+    return call(() -> {
+      loadBalancer.deregister(instance, false);
+      return null;
+    }).thenCompose(v -> {
+      if (!awaitFullyDrained) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return poll(() -> {
+        TargetHealthStateEnum state = loadBalancer.getTargetHealth(instance);
+        return state != TargetHealthStateEnum.Draining && state != TargetHealthStateEnum.Healthy;
+      }, Duration.ofSeconds(2), Duration.ofHours(1));
+    });
+  }
+
+  private CompletableFuture<HiveInstance> awaitIp(String instanceId) {
+    return queen.getInstanceWatcher().awaitIp(instanceId).orTimeout(20, TimeUnit.MINUTES);
+  }
+
+  private CompletableFuture<HiveImage> awaitImage(String imageId) {
+    return queen.getImageWatcher().awaitAvailable(imageId)
+        .orTimeout(HiveQueen.IMAGE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private CompletableFuture<HiveInstance> awaitState(String instanceId, InstanceStateName state, Duration timeout) {
+    return queen.getInstanceWatcher().awaitState(instanceId, state)
+        .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs a single blocking AWS call on the worker pool.
+   */
+  <T> CompletableFuture<T> call(Supplier<T> fn) {
+    return CompletableFuture.supplyAsync(fn, executor);
+  }
+
+  /**
+   * Like call(), for calls which change instances: cached instance lookups are dropped once the call returns.
+   */
+  private <T> CompletableFuture<T> mutate(Supplier<T> fn) {
+    return call(() -> {
+      T ret = fn.get();
+      queen.getInventoryCache().invalidate(ResourceType.INSTANCES);
+      return ret;
+    });
+  }
+
+  /**
+   * Completes once the condition is true. Between checks no thread is held; the next check is re-scheduled instead.
+   */
+  CompletableFuture<Void> poll(BooleanSupplier condition, Duration every, Duration timeout) {
+    CompletableFuture<Void> ret = new CompletableFuture<>();
+    schedulePoll(ret, condition, every, Duration.ZERO);
+    return ret.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void schedulePoll(CompletableFuture<Void> ret, BooleanSupplier condition, Duration every, Duration delay) {
+    scheduler.schedule(() -> executor.execute(() -> {
+      if (ret.isDone()) {
+        return;
+      }
+      try {
+        if (condition.getAsBoolean()) {
+          ret.complete(null);
+        } else {
+          schedulePoll(ret, condition, every, every);
+        }
+      } catch (Exception e) {
+        ret.completeExceptionally(e);
+      }
+    }), delay.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private static Throwable unwrap(Throwable t) {
+    return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+  }
+
+}
@@ -0,0 +1,92 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.ListHostedZonesRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesResult;
+
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+
+/**
+ * Caches the account's hosted zones so that record changes don't each need a ListHostedZones call.
+ */
+class HostedZoneCache {
+
+  private final AmazonRoute53 route53;
+  private final Duration ttl;
+
+  private List<HostedZone> zones = null;
+  private Instant expiration = Instant.MIN;
+
+  public HostedZoneCache(AmazonRoute53 route53, Duration ttl) {
+    this.route53 = route53;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Finds the zone with the longest name that the given record falls under, e.g. "a.qa.ender.com" will resolve to the
+   * "qa.ender.com" zone if one exists, and "ender.com" otherwise.
+   */
+  public synchronized HostedZone getZoneForRecord(String recordName) {
+    String name = HiveQueen.normalizeDomain(recordName).toLowerCase();
+
+    XOptional<HostedZone> ret = findZone(name, false);
+    if (!ret.isPresent()) {
+      // the zone may have been created since we last loaded
+      ret = findZone(name, true);
+    }
+    checkState(ret.isPresent(), "Could not find a hosted zone for: " + recordName);
+    return ret.get();
+  }
+
+  public synchronized void invalidate() {
+    zones = null;
+  }
+
+  private XOptional<HostedZone> findZone(String recordName, boolean forceRefresh) {
+    if (forceRefresh || zones == null || Instant.now().isAfter(expiration)) {
+      zones = loadZones();
+      expiration = Instant.now().plus(ttl);
+    }
+
+    HostedZone ret = null;
+    for (HostedZone zone : zones) {
+      String zoneName = HiveQueen.normalizeDomain(zone.getName()).toLowerCase();
+      if (recordName.equals(zoneName) || recordName.endsWith("." + zoneName)) {
+        if (ret == null || zoneName.length() > HiveQueen.normalizeDomain(ret.getName()).length()) {
+          ret = zone;
+        }
+      }
+    }
+    return XOptional.ofNullable(ret);
+  }
+
+  private List<HostedZone> loadZones() {
+    XList<HostedZone> ret = XList.create();
+    ListHostedZonesRequest request = new ListHostedZonesRequest();
+    while (true) {
+      ListHostedZonesResult result = route53.listHostedZones(request);
+      ret.addAll(result.getHostedZones());
+      if (!Boolean.TRUE.equals(result.getIsTruncated())) {
+        break;
+      }
+      request = new ListHostedZonesRequest().withMarker(result.getNextMarker());
+    }
+
+    // prefer public zones over private zones with the same name
+    ret.sort(Comparator.comparing(
+        zone -> zone.getConfig() != null && Boolean.TRUE.equals(zone.getConfig().getPrivateZone())));
+    Log.debug("Loaded " + ret.size() + " hosted zones.");
+    return ret;
+  }
+
+}
@@ -0,0 +1,245 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.ec2.model.CreateImageRequest;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.ImageState;
+import com.amazonaws.services.ec2.model.ResourceType;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+
+/**
+ * Keeps track of the images baked from each source instance so that clones can launch from a recent image instead of
+ * waiting for a new one.
+ *
+ * Images are found by the tag we put on them at creation, so they survive restarts. An image is fresh (usable for a
+ * clone) until it is older than maxAge. cleanup() deletes images, and their snapshots, once they are older than the
+ * retention period, but always keeps the newest few available ones.
+ */
+public class ImageManager {
+
+  static final String SOURCE_TAG = "hive:source-instance";
+
+  private final HiveQueen queen;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-images").build());
+  private final Map<String, ScheduledFuture<?>> schedules = new ConcurrentHashMap<>();
+
+  private volatile Duration maxAge = Duration.ofDays(1);
+  private volatile Duration retention = Duration.ofDays(7);
+  private volatile int keep = 2;
+
+  ImageManager(HiveQueen queen) {
+    this.queen = queen;
+  }
+
+  /**
+   * How old an image can be and still be used to clone its source instance. Defaults to 1 day.
+   */
+  public ImageManager maxAge(Duration maxAge) {
+    this.maxAge = maxAge;
+    return this;
+  }
+
+  /**
+   * How long cleanup() keeps images for. Defaults to 7 days.
+   */
+  public ImageManager retention(Duration retention) {
+    this.retention = retention;
+    return this;
+  }
+
+  /**
+   * The number of newest available images per source instance which cleanup() never deletes, however old they are.
+   * Defaults to 2.
+   */
+  public ImageManager keep(int keep) {
+    checkArgument(keep >= 0, "keep must not be negative.");
+    this.keep = keep;
+    return this;
+  }
+
+  /**
+   * All of the images baked from the given instance, newest first.
+   */
+  public XList<HiveImage> getImages(String instanceId) {
+    XList<HiveImage> ret = queen.getInventoryCache().get(InventoryCache.ResourceType.IMAGES, "source:" + instanceId,
+        () -> XList.create(queen.getEC2().describeImages(new DescribeImagesRequest()
+            .withOwners("self")
+            .withFilters(new Filter("tag:" + SOURCE_TAG).withValues(instanceId))).getImages())
+            .map(HiveImage::new));
+    ret = XList.create(ret);
+    ret.sort(Comparator.comparing(HiveImage::getCreationTime).reversed());
+    return ret;
+  }
+
+  /**
+   * The newest image of the given instance which is younger than maxAge. Available images are preferred, but if the
+   * only fresh image is still being created, that one is returned so the caller can wait for it rather than baking
+   * another.
+   *
+   * Images from before the ImageManager (named with just the instance id) are used as a last resort.
+   */
+  public XOptional<HiveImage> findImage(String instanceId) {
+    XList<HiveImage> fresh = getImages(instanceId).filter(this::isFresh);
+    XOptional<HiveImage> ret = fresh.filter(HiveImage::isAvailable).first();
+    if (ret.isPresent()) {
+      return ret;
+    }
+    ret = fresh.filter(image -> image.getState() == ImageState.Pending).first();
+    if (ret.isPresent()) {
+      return ret;
+    }
+    XOptional<HiveImage> legacy = queen.getImageByName(instanceId);
+    if (legacy.isPresent() && legacy.get().isAvailable() && isFresh(legacy.get())) {
+      return legacy;
+    }
+    return XOptional.empty();
+  }
+
+  private boolean isFresh(HiveImage image) {
+    return image.getAge().compareTo(maxAge) <= 0;
+  }
+
+  /**
+   * Starts creating a new image of the given instance and returns its id without waiting for it to become available.
+   *
+   * @param reboot If false, the image is taken from the running instance, which doesn't interrupt it but may catch the
+   *               filesystem mid-write.
+   */
+  public String bake(HiveInstance instance, boolean reboot) {
+    Log.debug("Creating Image of " + instance + "...");
+    Tag sourceTag = new Tag(SOURCE_TAG, instance.getId());
+    String imageId = queen.getEC2().createImage(new CreateImageRequest()
+        .withInstanceId(instance.getId())
+        .withName(instance.getId() + "-" + System.currentTimeMillis())
+        .withNoReboot(!reboot)
+        .withTagSpecifications(
+            new TagSpecification().withResourceType(ResourceType.Image).withTags(sourceTag),
+            new TagSpecification().withResourceType(ResourceType.Snapshot).withTags(sourceTag)))
+        .getImageId();
+    queen.getInventoryCache().invalidate(InventoryCache.ResourceType.IMAGES);
+    return imageId;
+  }
+
+  /**
+   * Bakes an image of each of the given instances at once and waits for all of them, so the whole batch takes about as
+   * long as the slowest image. The result maps each instance to its image; one failed image doesn't affect the others.
+   * Use async().createImages() to handle each image as soon as it's ready.
+   */
+  public FleetResult<HiveImage> bakeAll(Collection<HiveInstance> instances, boolean reboot) {
+    XList<HiveInstance> list = XList.create(instances);
+    // each future fails on its own after HiveQueen.IMAGE_TIMEOUT, so none of these joins can hang
+    XList<CompletableFuture<HiveImage>> futures = queen.async().createImages(list, reboot);
+    FleetResult<HiveImage> ret = new FleetResult<>();
+    for (int i = 0; i < list.size(); i++) {
+      try {
+        ret.addResult(list.get(i), futures.get(i).join());
+      } catch (CompletionException e) {
+        Log.error("Image of " + list.get(i) + " failed: " + e.getCause());
+        ret.addFailure(list.get(i), e.getCause());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Bakes a new image of the given instance every period (without rebooting it) and cleans up its stale images, in the
+   * background, until stopPrebaking() is called. A bake is skipped if a clone or an earlier bake already made an image
+   * within the last half period.
+   */
+  public ImageManager prebake(String instanceId, Duration every) {
+    ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        bakeIfStale(instanceId, every.dividedBy(2));
+        cleanup(instanceId);
+      } catch (Exception e) {
+        Log.error("Pre-bake of " + instanceId + " failed: " + e);
+      }
+    }, 0, every.toMillis(), TimeUnit.MILLISECONDS);
+
+    ScheduledFuture<?> previous = schedules.put(instanceId, future);
+    if (previous != null) {
+      previous.cancel(false);
+    }
+    return this;
+  }
+
+  private void bakeIfStale(String instanceId, Duration minInterval) {
+    XOptional<HiveImage> newest = getImages(instanceId)
+        .filter(image -> image.isAvailable() || image.getState() == ImageState.Pending).first();
+    if (newest.isPresent() && newest.get().getAge().compareTo(minInterval) < 0) {
+      Log.debug("Skipping pre-bake of " + instanceId + ", " + newest.get() + " is recent enough.");
+      return;
+    }
+    bake(queen.getInstance(instanceId), false);
+  }
+
+  public void stopPrebaking(String instanceId) {
+    ScheduledFuture<?> future = schedules.remove(instanceId);
+    if (future != null) {
+      future.cancel(false);
+    }
+  }
+
+  /**
+   * Deregisters the given instance's images which are past the retention period (or failed), along with their
+   * snapshots. The newest available images are kept, as are images which are still being created.
+   *
+   * @return The images which were deleted.
+   */
+  public XList<HiveImage> cleanup(String instanceId) {
+    XList<HiveImage> ret = XList.create();
+    int kept = 0;
+    for (HiveImage image : getImages(instanceId)) {
+      ImageState state = image.getState();
+      if (state == ImageState.Pending) {
+        continue;
+      }
+      if (state == ImageState.Available && kept < keep) {
+        kept++;
+        continue;
+      }
+      if (state == ImageState.Failed || state == ImageState.Error || image.getAge().compareTo(retention) > 0) {
+        delete(image);
+        ret.add(image);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Deregisters the image and deletes the snapshots behind it.
+   */
+  public void delete(HiveImage image) {
+    Log.debug("Deleting image " + image + " (" + image.getName() + ")");
+    queen.getEC2().deregisterImage(new DeregisterImageRequest(image.getId()));
+    queen.getInventoryCache().invalidate(InventoryCache.ResourceType.IMAGES);
+    for (String snapshotId : image.getSnapshotIds()) {
+      queen.getEC2().deleteSnapshot(new DeleteSnapshotRequest().withSnapshotId(snapshotId));
+    }
+  }
+
+}
@@ -0,0 +1,34 @@
+package queen;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.ec2.model.ImageState;
+import com.google.common.collect.Maps;
+
+/**
+ * Watches pending images on behalf of every waiter in this HiveQueen, so that N images being created costs one
+ * DescribeImages call per tick rather than N.
+ */
+public class ImageWatcher extends ResourceWatcher<HiveImage> {
+
+  public ImageWatcher(HiveQueen queen) {
+    super("image", ids -> Maps.uniqueIndex(queen.findImages(ids), HiveImage::getId), HiveImage::getState,
+        Duration.ofSeconds(5), Duration.ofSeconds(15));
+  }
+
+  /**
+   * Completes once the image is available, or fails if image creation fails.
+   */
+  public CompletableFuture<HiveImage> awaitAvailable(String imageId) {
+    return await(imageId, image -> {
+      ImageState state = image.getState();
+      if (state == ImageState.Failed || state == ImageState.Error || state == ImageState.Invalid
+          || state == ImageState.Deregistered) {
+        throw new IllegalStateException("Image " + imageId + " is " + state);
+      }
+      return state == ImageState.Available;
+    });
+  }
+
+}
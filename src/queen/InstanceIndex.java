@@ -0,0 +1,81 @@
+package queen;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import ox.x.XList;
+import ox.x.XOptional;
+
+/**
+ * An index of a snapshot of instances by their tags. It is built once (see HiveQueen.indexInstances()) and can then
+ * answer any number of TagQuerys without scanning every instance.
+ *
+ * The index doesn't change as instances change; build a new one to see new tags.
+ */
+public class InstanceIndex {
+
+  private final XList<HiveInstance> instances;
+
+  /**
+   * tag key -> tag value -> instances, with the values sorted so that prefix lookups are a range scan.
+   */
+  private final Map<String, TreeMap<String, Set<HiveInstance>>> byTag = new HashMap<>();
+  private final Map<String, Set<HiveInstance>> byKey = new HashMap<>();
+
+  public InstanceIndex(Iterable<HiveInstance> instances) {
+    this.instances = XList.create(instances);
+    for (HiveInstance instance : this.instances) {
+      instance.getTagMap().forEach((key, value) -> {
+        byTag.computeIfAbsent(key, k -> new TreeMap<>())
+            .computeIfAbsent(value, v -> new LinkedHashSet<>())
+            .add(instance);
+        byKey.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(instance);
+      });
+    }
+  }
+
+  public XList<HiveInstance> find(TagQuery query) {
+    return XList.create(query.evaluate(this));
+  }
+
+  public XOptional<HiveInstance> getByName(String name) {
+    return find(TagQuery.eq("Name", name)).only();
+  }
+
+  public XList<HiveInstance> getInstances() {
+    return XList.create(instances);
+  }
+
+  public int size() {
+    return instances.size();
+  }
+
+  Set<HiveInstance> getEqual(String key, String value) {
+    TreeMap<String, Set<HiveInstance>> values = byTag.get(key);
+    if (values == null) {
+      return Collections.emptySet();
+    }
+    Set<HiveInstance> ret = values.get(value);
+    return ret == null ? Collections.emptySet() : Collections.unmodifiableSet(ret);
+  }
+
+  Set<HiveInstance> getWithPrefix(String key, String prefix) {
+    TreeMap<String, Set<HiveInstance>> values = byTag.get(key);
+    if (values == null) {
+      return Collections.emptySet();
+    }
+    Set<HiveInstance> ret = new LinkedHashSet<>();
+    values.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values().forEach(ret::addAll);
+    return ret;
+  }
+
+  Set<HiveInstance> getWithKey(String key) {
+    Set<HiveInstance> ret = byKey.get(key);
+    return ret == null ? Collections.emptySet() : Collections.unmodifiableSet(ret);
+  }
+
+}
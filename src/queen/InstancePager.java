@@ -0,0 +1,120 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ox.util.Utils.normalize;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.x.XList;
+
+/**
+ * Lazily walks every page of a DescribeInstances call. Pages are only fetched as the caller consumes instances. If
+ * prefetch is enabled, the next page is requested in the background while the current one is being consumed; close()
+ * cancels that request if it hasn't started yet.
+ */
+class InstancePager implements Iterator<HiveInstance> {
+
+  /**
+   * Prefetches block on the network, so they get their own threads rather than the common fork-join pool.
+   */
+  private static final ExecutorService prefetcher = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-pager-%d").build());
+
+  private final HiveQueen queen;
+  private final DescribeInstancesRequest request;
+  private final boolean prefetch;
+
+  private Iterator<HiveInstance> page = Collections.emptyIterator();
+  private Supplier<DescribeInstancesResult> nextPage;
+  private CompletableFuture<DescribeInstancesResult> prefetching = null;
+
+  public InstancePager(HiveQueen queen, DescribeInstancesRequest request, int pageSize, boolean prefetch) {
+    checkArgument(pageSize >= 5 && pageSize <= 1000, "pageSize must be between 5 and 1000");
+
+    this.queen = queen;
+    this.request = request.clone();
+    this.prefetch = prefetch;
+
+    // EC2 rejects MaxResults when specific instance ids are requested
+    if (this.request.getInstanceIds().isEmpty()) {
+      this.request.setMaxResults(pageSize);
+    }
+
+    nextPage = () -> fetch(null);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!page.hasNext() && nextPage != null) {
+      loadNextPage();
+    }
+    return page.hasNext();
+  }
+
+  @Override
+  public HiveInstance next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.next();
+  }
+
+  private void loadNextPage() {
+    DescribeInstancesResult result = nextPage.get();
+
+    String token = normalize(result.getNextToken());
+    nextPage = token.isEmpty() ? null : pageAfter(token);
+
+    XList<HiveInstance> instances = XList.create();
+    result.getReservations().forEach(reservation -> {
+      reservation.getInstances().forEach(i -> {
+        instances.add(new HiveInstance(queen, i));
+      });
+    });
+    page = instances.iterator();
+  }
+
+  private Supplier<DescribeInstancesResult> pageAfter(String token) {
+    if (!prefetch) {
+      return () -> fetch(token);
+    }
+    CompletableFuture<DescribeInstancesResult> future = CompletableFuture.supplyAsync(() -> fetch(token), prefetcher);
+    prefetching = future;
+    return () -> {
+      try {
+        return future.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    };
+  }
+
+  /**
+   * Stops paging. A prefetch which hasn't started yet is cancelled; one that's already in flight is left to finish.
+   */
+  public void close() {
+    nextPage = null;
+    if (prefetching != null) {
+      prefetching.cancel(false);
+    }
+  }
+
+  private DescribeInstancesResult fetch(String token) {
+    return queen.getEC2().describeInstances(request.clone().withNextToken(token));
+  }
+
+}
@@ -0,0 +1,33 @@
+package queen;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.google.common.collect.Maps;
+
+/**
+ * Watches instances on behalf of every waiter in this HiveQueen, so that N instances being awaited costs one
+ * DescribeInstances call per tick rather than N.
+ */
+public class InstanceWatcher extends ResourceWatcher<HiveInstance> {
+
+  public InstanceWatcher(HiveQueen queen) {
+    super("instance", ids -> Maps.uniqueIndex(queen.findInstances(ids), HiveInstance::getId),
+        i -> i.getState() + "|" + i.getIp() + "|" + i.getTagMap(),
+        Duration.ofSeconds(1), Duration.ofSeconds(5));
+  }
+
+  public CompletableFuture<HiveInstance> awaitState(String instanceId, InstanceStateName state) {
+    return await(instanceId, i -> i.getState() == state);
+  }
+
+  public CompletableFuture<HiveInstance> awaitIp(String instanceId) {
+    return await(instanceId, i -> !i.getIp().isEmpty());
+  }
+
+  public CompletableFuture<HiveInstance> awaitTag(String instanceId, String key, String value) {
+    return await(instanceId, i -> i.getTag(key).equals(value));
+  }
+
+}
@@ -0,0 +1,119 @@
+package queen;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A read-through cache for describe calls, with a separate TTL per resource type.
+ *
+ * HiveQueen invalidates the affected resource type whenever it mutates something (launching, terminating, tagging,
+ * registering, etc.), so lookups made by this library stay consistent with its own changes. Changes made outside this
+ * process are picked up when the TTL expires.
+ */
+public class InventoryCache {
+
+  public static enum ResourceType {
+    INSTANCES, IMAGES, VPCS, SUBNETS, LOAD_BALANCERS, TARGET_GROUPS;
+  }
+
+  private final Map<ResourceType, Duration> ttls = new ConcurrentHashMap<>();
+  private final Map<ResourceType, Generation> generations = new EnumMap<>(ResourceType.class);
+  private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+
+  public InventoryCache() {
+    for (ResourceType type : ResourceType.values()) {
+      generations.put(type, new Generation());
+      ttls.put(type, Duration.ZERO);
+    }
+  }
+
+  /**
+   * A cache which doesn't cache anything. This is what HiveQueen uses unless a cache is configured.
+   */
+  public static InventoryCache disabled() {
+    return new InventoryCache();
+  }
+
+  /**
+   * A cache with TTLs suitable for scripts: instances and target groups change often, VPCs and subnets rarely.
+   */
+  public static InventoryCache withDefaults() {
+    return new InventoryCache()
+        .ttl(ResourceType.INSTANCES, Duration.ofSeconds(30))
+        .ttl(ResourceType.IMAGES, Duration.ofMinutes(5))
+        .ttl(ResourceType.VPCS, Duration.ofHours(1))
+        .ttl(ResourceType.SUBNETS, Duration.ofHours(1))
+        .ttl(ResourceType.LOAD_BALANCERS, Duration.ofMinutes(5))
+        .ttl(ResourceType.TARGET_GROUPS, Duration.ofMinutes(5));
+  }
+
+  public InventoryCache ttl(ResourceType type, Duration ttl) {
+    ttls.put(type, ttl);
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T get(ResourceType type, String key, Supplier<T> loader) {
+    Duration ttl = ttls.get(type);
+    if (ttl.isZero()) {
+      return loader.get();
+    }
+
+    String cacheKey = type + ":" + key;
+    CacheEntry entry = entries.get(cacheKey);
+    if (entry != null && Instant.now().isBefore(entry.expiration)) {
+      return (T) entry.value;
+    }
+
+    // if the type is invalidated while we're loading, don't cache what we loaded
+    Generation generation = generations.get(type);
+    long before;
+    synchronized (generation) {
+      before = generation.value;
+    }
+    T ret = loader.get();
+    synchronized (generation) {
+      if (generation.value == before) {
+        entries.put(cacheKey, new CacheEntry(ret, Instant.now().plus(ttl)));
+      }
+    }
+    return ret;
+  }
+
+  public void invalidate(ResourceType type) {
+    Generation generation = generations.get(type);
+    synchronized (generation) {
+      generation.value++;
+      entries.keySet().removeIf(key -> key.startsWith(type + ":"));
+    }
+  }
+
+  public void invalidateAll() {
+    for (ResourceType type : ResourceType.values()) {
+      invalidate(type);
+    }
+  }
+
+  /**
+   * Counts invalidations of one resource type. Its monitor also guards writes of that type's entries, so a load can't
+   * be cached after an invalidate that it raced with.
+   */
+  private static class Generation {
+    private long value;
+  }
+
+  private static class CacheEntry {
+    private final Object value;
+    private final Instant expiration;
+
+    public CacheEntry(Object value, Instant expiration) {
+      this.value = value;
+      this.expiration = expiration;
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+package queen;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+
+/**
+ * Times every call made through a client and reports it to the registered MetricsSinks.
+ *
+ * This should be the first handler on the client, so that the time spent waiting on the ThrottlingHandler's bucket is
+ * included in the latency.
+ */
+class MetricsHandler extends RequestHandler2 {
+
+  private static final HandlerContextKey<Long> START = new HandlerContextKey<>("hive.metrics.start");
+  private static final HandlerContextKey<AtomicInteger> ATTEMPTS = new HandlerContextKey<>("hive.metrics.attempts");
+  private static final HandlerContextKey<AtomicInteger> THROTTLES = new HandlerContextKey<>("hive.metrics.throttles");
+
+  private final ApiMetrics apiMetrics = new ApiMetrics();
+  private final List<MetricsSink> sinks = new CopyOnWriteArrayList<>(List.of(apiMetrics));
+
+  public ApiMetrics getApiMetrics() {
+    return apiMetrics;
+  }
+
+  public void addSink(MetricsSink sink) {
+    sinks.add(sink);
+  }
+
+  public void removeSink(MetricsSink sink) {
+    sinks.remove(sink);
+  }
+
+  @Override
+  public void beforeRequest(Request<?> request) {
+    request.addHandlerContext(START, System.nanoTime());
+    request.addHandlerContext(ATTEMPTS, new AtomicInteger());
+    request.addHandlerContext(THROTTLES, new AtomicInteger());
+  }
+
+  @Override
+  public void beforeAttempt(HandlerBeforeAttemptContext context) {
+    AtomicInteger attempts = context.getRequest().getHandlerContext(ATTEMPTS);
+    if (attempts != null) {
+      attempts.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void afterAttempt(HandlerAfterAttemptContext context) {
+    Exception e = context.getException();
+    AtomicInteger throttles = context.getRequest().getHandlerContext(THROTTLES);
+    if (throttles != null && e instanceof AmazonServiceException
+        && AdaptiveRetryPolicy.isThrottling((AmazonServiceException) e)) {
+      throttles.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void afterResponse(Request<?> request, Response<?> response) {
+    record(request, null);
+  }
+
+  @Override
+  public void afterError(Request<?> request, Response<?> response, Exception e) {
+    String errorCode = e instanceof AmazonServiceException ? ((AmazonServiceException) e).getErrorCode()
+        : e.getClass().getSimpleName();
+    record(request, errorCode);
+  }
+
+  private void record(Request<?> request, String errorCode) {
+    Long start = request.getHandlerContext(START);
+    if (start == null) {
+      return;
+    }
+    AtomicInteger attempts = request.getHandlerContext(ATTEMPTS);
+    AtomicInteger throttles = request.getHandlerContext(THROTTLES);
+
+    MetricsSink.ApiCall call = new MetricsSink.ApiCall(getService(request), getOperation(request),
+        Duration.ofNanos(System.nanoTime() - start), attempts.get(), throttles.get(), errorCode,
+        MetricsSink.ApiCall.isContinuation(request.getOriginalRequest()));
+    for (MetricsSink sink : sinks) {
+      sink.onCall(call);
+    }
+  }
+
+  private static String getService(Request<?> request) {
+    String ret = request.getHandlerContext(HandlerContextKey.SIGNING_NAME);
+    return ret != null ? ret : request.getServiceName();
+  }
+
+  private static String getOperation(Request<?> request) {
+    String ret = request.getHandlerContext(HandlerContextKey.OPERATION_NAME);
+    if (ret != null) {
+      return ret;
+    }
+    String className = request.getOriginalRequest().getClass().getSimpleName();
+    return className.endsWith("Request") ? className.substring(0, className.length() - "Request".length())
+        : className;
+  }
+
+}
@@ -0,0 +1,116 @@
+package queen;
+
+import java.time.Duration;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesRequest;
+
+/**
+ * Receives one record per AWS call made through a HiveQueen's clients. Implementations must be thread-safe and fast,
+ * since they're called on the thread making the request.
+ */
+public interface MetricsSink {
+
+  public void onCall(ApiCall call);
+
+  public static class ApiCall {
+
+    private final String service;
+    private final String operation;
+    private final Duration latency;
+    private final int attempts;
+    private final int throttledAttempts;
+    private final String errorCode;
+    private final boolean continuationPage;
+
+    public ApiCall(String service, String operation, Duration latency, int attempts, int throttledAttempts,
+        String errorCode, boolean continuationPage) {
+      this.service = service;
+      this.operation = operation;
+      this.latency = latency;
+      this.attempts = attempts;
+      this.throttledAttempts = throttledAttempts;
+      this.errorCode = errorCode;
+      this.continuationPage = continuationPage;
+    }
+
+    /**
+     * e.g. "ec2", "route53" or "elasticloadbalancing".
+     */
+    public String getService() {
+      return service;
+    }
+
+    /**
+     * e.g. "DescribeInstances".
+     */
+    public String getOperation() {
+      return operation;
+    }
+
+    public String getKey() {
+      return service + ":" + operation;
+    }
+
+    /**
+     * The wall time of the whole call, including waiting for a rate limit token and any retries.
+     */
+    public Duration getLatency() {
+      return latency;
+    }
+
+    public int getAttempts() {
+      return attempts;
+    }
+
+    public int getThrottledAttempts() {
+      return throttledAttempts;
+    }
+
+    /**
+     * The AWS error code if the call ultimately failed, otherwise null.
+     */
+    public String getErrorCode() {
+      return errorCode;
+    }
+
+    public boolean isError() {
+      return errorCode != null;
+    }
+
+    /**
+     * True if this call fetched the second or later page of a paginated result.
+     */
+    public boolean isContinuationPage() {
+      return continuationPage;
+    }
+
+    /**
+     * Whether the given request asks for the second or later page of one of the paginated operations we use.
+     */
+    public static boolean isContinuation(AmazonWebServiceRequest request) {
+      if (request instanceof DescribeInstancesRequest) {
+        return ((DescribeInstancesRequest) request).getNextToken() != null;
+      } else if (request instanceof DescribeImagesRequest) {
+        return ((DescribeImagesRequest) request).getNextToken() != null;
+      } else if (request instanceof ListHostedZonesRequest) {
+        return ((ListHostedZonesRequest) request).getMarker() != null;
+      } else if (request instanceof DescribeLoadBalancersRequest) {
+        return ((DescribeLoadBalancersRequest) request).getMarker() != null;
+      } else if (request instanceof DescribeTargetGroupsRequest) {
+        return ((DescribeTargetGroupsRequest) request).getMarker() != null;
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + " " + latency.toMillis() + "ms" + (isError() ? " " + errorCode : "");
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package queen;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import ox.x.XList;
+
+/**
+ * The phases a single long-running operation (clone, stop, changeInstanceType, etc.) went through and how long each one
+ * took. Operations nested inside another one (e.g. the stop inside changeInstanceType) add their phases to the outer
+ * operation's timeline.
+ */
+public class OperationTimeline {
+
+  private final String operation;
+  private final String target;
+  private final Instant start = Instant.now();
+  private final XList<Phase> phases = XList.create();
+
+  private Duration duration = null;
+  private String error = null;
+
+  OperationTimeline(String operation, String target) {
+    this.operation = operation;
+    this.target = target;
+  }
+
+  synchronized void addPhase(Phase phase) {
+    phases.add(phase);
+  }
+
+  synchronized void finish(Throwable t) {
+    duration = Duration.between(start, Instant.now());
+    error = t == null ? null : t.toString();
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  /**
+   * The instance (or other resource) the operation was run on.
+   */
+  public String getTarget() {
+    return target;
+  }
+
+  public Instant getStart() {
+    return start;
+  }
+
+  /**
+   * The total time of the operation, or null if it is still running.
+   */
+  public synchronized Duration getDuration() {
+    return duration;
+  }
+
+  public synchronized List<Phase> getPhases() {
+    return ImmutableList.copyOf(phases);
+  }
+
+  public synchronized boolean isSuccess() {
+    return duration != null && error == null;
+  }
+
+  public synchronized String getError() {
+    return error;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder(operation + " " + target + ": "
+        + (duration == null ? "running" : duration.toMillis() + "ms") + (error == null ? "" : " FAILED " + error));
+    phases.forEach(p -> sb.append("\n  ").append(p));
+    return sb.toString();
+  }
+
+  public static class Phase {
+    private final String name;
+    private final Duration duration;
+    private final int polls;
+    private final boolean success;
+
+    Phase(String name, Duration duration, int polls, boolean success) {
+      this.name = name;
+      this.duration = duration;
+      this.polls = polls;
+      this.success = success;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Duration getDuration() {
+      return duration;
+    }
+
+    /**
+     * The number of times the phase checked whether it was done. Zero for phases which are a single call.
+     */
+    public int getPolls() {
+      return polls;
+    }
+
+    public boolean isSuccess() {
+      return success;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": " + duration.toMillis() + "ms" + (polls > 0 ? " (" + polls + " polls)" : "")
+          + (success ? "" : " FAILED");
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+package queen;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingClientBuilder;
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.AmazonRoute53ClientBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The HiveQueens for each region, created the first time a region is used.
+ *
+ * All regions share the same credentials, client configuration and Route53 client (Route53 is a global service). The
+ * EC2 and ELB clients have to be per region, and the v1 SDK gives each client its own connection pool, so those can't
+ * be shared.
+ */
+class RegionPool {
+
+  private final AWSCredentialsProvider provider;
+  private final ClientConfiguration clientConfig;
+
+  private final MetricsHandler metrics = new MetricsHandler();
+
+  private final Map<Regions, HiveQueen> queens = new EnumMap<>(Regions.class);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-regions-%d").build());
+
+  private AmazonRoute53 route53 = null;
+
+  public RegionPool(AWSCredentialsProvider provider, ClientConfiguration clientConfig) {
+    this.provider = provider;
+    this.clientConfig = clientConfig;
+  }
+
+  public synchronized HiveQueen get(Regions region) {
+    HiveQueen ret = queens.get(region);
+    return ret != null ? ret : new HiveQueen(this, region);
+  }
+
+  /**
+   * Called by each HiveQueen created with this pool, including the first one.
+   */
+  synchronized void register(Regions region, HiveQueen queen) {
+    queens.putIfAbsent(region, queen);
+  }
+
+  /**
+   * Shared by every region, so the metrics cover all of them.
+   */
+  public MetricsHandler getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Used for fanning queries out across regions.
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  AmazonEC2 createEC2(Regions region) {
+    return AmazonEC2ClientBuilder.standard().withCredentials(provider).withRegion(region)
+        .withClientConfiguration(clientConfig)
+        .withRequestHandlers(metrics, ThrottlingHandler.forService("ec2")).build();
+  }
+
+  AmazonElasticLoadBalancing createLoadBalancing(Regions region) {
+    return AmazonElasticLoadBalancingClientBuilder.standard().withCredentials(provider).withRegion(region)
+        .withClientConfiguration(clientConfig)
+        .withRequestHandlers(metrics, ThrottlingHandler.forService("elasticloadbalancing")).build();
+  }
+
+  synchronized AmazonRoute53 getRoute53() {
+    if (route53 == null) {
+      route53 = AmazonRoute53ClientBuilder.standard().withCredentials(provider).withRegion(Regions.US_EAST_2)
+          .withClientConfiguration(clientConfig)
+          .withRequestHandlers(metrics, ThrottlingHandler.forService("route53")).build();
+    }
+    return route53;
+  }
+
+}
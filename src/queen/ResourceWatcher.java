@@ -0,0 +1,171 @@
+package queen;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.Log;
+
+/**
+ * Polls every watched resource with one batched describe call per tick and completes futures as resources reach the
+ * conditions callers are waiting on.
+ *
+ * The poll interval starts at minInterval and doubles (up to maxInterval) for each tick where nothing changed. It drops
+ * back to minInterval as soon as a change is observed or a new watch is registered.
+ */
+public class ResourceWatcher<T> {
+
+  private final String name;
+  private final Function<Collection<String>, Map<String, T>> fetcher;
+  private final Function<T, Object> fingerprint;
+  private final Duration minInterval, maxInterval;
+
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Futures are completed here rather than on the watcher thread, since callers' continuations (thenApply etc.) run on
+   * whichever thread completes the future and may block.
+   */
+  private final ExecutorService callbacks;
+
+  private final Map<String, List<Watch<T>>> watches = new HashMap<>();
+  private final Map<String, Object> lastSeen = new HashMap<>();
+  private Duration interval;
+  private ScheduledFuture<?> nextTick = null;
+
+  /**
+   * @param fetcher Given a set of ids, returns the current state of those resources keyed by id. Resources which
+   *                aren't visible yet may be omitted.
+   * @param fingerprint Used to detect whether a resource changed between ticks.
+   */
+  public ResourceWatcher(String name, Function<Collection<String>, Map<String, T>> fetcher,
+      Function<T, Object> fingerprint, Duration minInterval, Duration maxInterval) {
+    this.name = name;
+    this.fetcher = fetcher;
+    this.fingerprint = fingerprint;
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+    this.interval = minInterval;
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-watcher").build());
+    this.callbacks = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-watcher-callback-%d").build());
+  }
+
+  /**
+   * Returns a future which completes with the resource the first time the condition is true. Cancel the future to stop
+   * watching.
+   */
+  public CompletableFuture<T> await(String id, Predicate<T> condition) {
+    Watch<T> watch = new Watch<>(condition);
+    synchronized (this) {
+      watches.computeIfAbsent(id, k -> new ArrayList<>()).add(watch);
+      interval = minInterval;
+      schedule(minInterval);
+    }
+    return watch.future;
+  }
+
+  public synchronized int getWatchCount() {
+    return watches.values().stream().mapToInt(List::size).sum();
+  }
+
+  private void schedule(Duration delay) {
+    if (nextTick != null) {
+      if (nextTick.getDelay(TimeUnit.MILLISECONDS) <= delay.toMillis()) {
+        return;
+      }
+      nextTick.cancel(false);
+    }
+    nextTick = executor.schedule(this::tick, delay.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void tick() {
+    Set<String> ids;
+    synchronized (this) {
+      nextTick = null;
+      watches.values().forEach(list -> list.removeIf(w -> w.future.isDone()));
+      watches.values().removeIf(List::isEmpty);
+      lastSeen.keySet().retainAll(watches.keySet());
+      if (watches.isEmpty()) {
+        interval = minInterval;
+        return;
+      }
+      ids = ImmutableSet.copyOf(watches.keySet());
+    }
+
+    Map<String, T> resources;
+    try {
+      resources = fetcher.apply(ids);
+    } catch (Exception e) {
+      Log.warn(name + " watcher poll failed: " + e.getMessage());
+      resources = ImmutableMap.of();
+    }
+
+    List<Runnable> completions = new ArrayList<>();
+    synchronized (this) {
+      boolean changed = false;
+      for (Entry<String, T> e : resources.entrySet()) {
+        Object fp = fingerprint.apply(e.getValue());
+        if (!Objects.equals(lastSeen.put(e.getKey(), fp), fp)) {
+          changed = true;
+        }
+        for (Watch<T> watch : watches.getOrDefault(e.getKey(), List.of())) {
+          Runnable completion = watch.check(e.getValue());
+          if (completion != null) {
+            completions.add(completion);
+          }
+        }
+      }
+      if (changed) {
+        interval = minInterval;
+      } else {
+        Duration doubled = interval.multipliedBy(2);
+        interval = doubled.compareTo(maxInterval) > 0 ? maxInterval : doubled;
+      }
+      schedule(interval);
+    }
+
+    // complete on other threads so that dependent callbacks can't stall the watcher
+    completions.forEach(callbacks::execute);
+  }
+
+  private static class Watch<T> {
+    private final Predicate<T> condition;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    public Watch(Predicate<T> condition) {
+      this.condition = condition;
+    }
+
+    public Runnable check(T resource) {
+      if (future.isDone()) {
+        return null;
+      }
+      try {
+        return condition.test(resource) ? () -> future.complete(resource) : null;
+      } catch (Exception e) {
+        return () -> future.completeExceptionally(e);
+      }
+    }
+  }
+
+}
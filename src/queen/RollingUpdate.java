@@ -0,0 +1,304 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ox.util.Utils.sleep;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.Await;
+import ox.Log;
+import ox.x.XList;
+import ox.x.XMap;
+
+/**
+ * Replaces or resizes the targets of a load balancer in waves, without dropping below a minimum number of healthy
+ * targets.
+ *
+ * Several waves can be in flight at once: while one wave's old targets are draining, the next wave is already
+ * launching and registering. replace() never takes capacity away before the replacements are healthy. resize() has to
+ * take each instance out of service, so a wave only starts once the load balancer has enough healthy targets left
+ * over.
+ */
+public class RollingUpdate {
+
+  private static final Duration POLL_INTERVAL = Duration.ofSeconds(2);
+
+  private final HiveLoadBalancer loadBalancer;
+  private final HiveQueen queen;
+
+  private int waveSize = 1;
+  private int maxWavesInFlight = 2;
+  private Integer minHealthy = null;
+  private boolean terminateReplaced = false;
+  private Duration healthyTimeout = Duration.ofHours(1);
+
+  RollingUpdate(HiveLoadBalancer loadBalancer, HiveQueen queen) {
+    this.loadBalancer = loadBalancer;
+    this.queen = queen;
+  }
+
+  /**
+   * The number of targets replaced (or resized) together. Defaults to 1.
+   */
+  public RollingUpdate waveSize(int waveSize) {
+    checkArgument(waveSize > 0);
+    this.waveSize = waveSize;
+    return this;
+  }
+
+  /**
+   * The maximum number of waves in flight at the same time. Defaults to 2, so that one wave can drain while the next
+   * one comes up.
+   */
+  public RollingUpdate maxWavesInFlight(int maxWavesInFlight) {
+    checkArgument(maxWavesInFlight > 0);
+    this.maxWavesInFlight = maxWavesInFlight;
+    return this;
+  }
+
+  /**
+   * The number of healthy targets which must stay in service. For resize(), this defaults to one wave fewer than the
+   * number of healthy targets at the start.
+   */
+  public RollingUpdate minHealthy(int minHealthy) {
+    checkArgument(minHealthy >= 0);
+    this.minHealthy = minHealthy;
+    return this;
+  }
+
+  /**
+   * If true, replace() terminates the old instances once they have finished draining.
+   */
+  public RollingUpdate terminateReplaced(boolean terminateReplaced) {
+    this.terminateReplaced = terminateReplaced;
+    return this;
+  }
+
+  /**
+   * How long to wait for new or resized targets to become healthy. Defaults to 1 hour.
+   */
+  public RollingUpdate healthyTimeout(Duration healthyTimeout) {
+    this.healthyTimeout = healthyTimeout;
+    return this;
+  }
+
+  /**
+   * Replaces every target with the instance returned by the given function, for example a clone of it. The result maps
+   * each old target to its replacement.
+   */
+  public FleetResult<HiveInstance> replace(Function<HiveInstance, HiveInstance> replacement) {
+    Rollout rollout = new Rollout();
+    run(loadBalancer.getTargets(), false, rollout, wave -> replaceWave(wave, replacement, rollout));
+
+    awaitDrained(rollout.draining);
+    if (terminateReplaced) {
+      queen.getInstances(rollout.draining).forEach(HiveInstance::terminate);
+    }
+    return rollout.result;
+  }
+
+  /**
+   * Changes the instance type of every target which isn't already of the given type. The result maps each target to
+   * the resized instance. If there are too few healthy targets to start the next wave, the targets which weren't
+   * resized are reported as failures.
+   */
+  public FleetResult<HiveInstance> resize(InstanceType type) {
+    Rollout rollout = new Rollout();
+    XList<HiveInstance> targets = loadBalancer.getTargets().filter(i -> i.getType() != type);
+    run(targets, true, rollout, wave -> resizeWave(wave, type, rollout.result));
+    return rollout.result;
+  }
+
+  private void run(XList<HiveInstance> targets, boolean takesCapacity, Rollout rollout, WaveOperation operation) {
+    FleetResult<HiveInstance> result = rollout.result;
+    if (targets.isEmpty()) {
+      return;
+    }
+
+    int healthyAtStart = countHealthy(loadBalancer.getTargetHealthById());
+    int min = minHealthy != null ? minHealthy
+        : takesCapacity ? Math.max(0, healthyAtStart - waveSize) : healthyAtStart;
+    List<List<HiveInstance>> waves = Lists.partition(targets, waveSize);
+    Log.info("Rolling " + targets.size() + " targets in " + waves.size() + " waves, keeping " + min + " healthy.");
+
+    ExecutorService executor = Executors.newFixedThreadPool(maxWavesInFlight,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-rollout-%d").build());
+    try {
+      XList<Future<?>> inFlight = XList.create();
+      int next = 0;
+      while ((next < waves.size() && result.isSuccess()) || !inFlight.isEmpty()) {
+        inFlight.removeIf(Future::isDone);
+        boolean start = next < waves.size() && result.isSuccess() && inFlight.size() < maxWavesInFlight;
+        if (start && takesCapacity) {
+          int healthy = countHealthyInService(rollout);
+          int needed = waves.get(next).size();
+          if (healthy - needed < min) {
+            start = false;
+            if (inFlight.isEmpty()) {
+              // nothing in flight will give capacity back, so waiting won't help
+              Exception e = new IllegalStateException("Only " + healthy + " healthy targets, so " + needed
+                  + " can't be taken out of service while keeping " + min + " healthy.");
+              waves.subList(next, waves.size()).forEach(wave -> wave.forEach(i -> result.addFailure(i, e)));
+              next = waves.size();
+            }
+          }
+        }
+        if (start) {
+          List<HiveInstance> wave = waves.get(next++);
+          Log.info("Starting wave " + next + " of " + waves.size() + ": " + wave);
+          wave.forEach(i -> rollout.outOfService.add(i.getId()));
+          inFlight.add(executor.submit(() -> runWave(wave, operation, rollout)));
+        } else {
+          sleep(POLL_INTERVAL.toMillis());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (!result.isSuccess()) {
+      Log.warn("Stopped rolling update because of failures: " + result.getFailures().keySet());
+    }
+  }
+
+  private void runWave(List<HiveInstance> wave, WaveOperation operation, Rollout rollout) {
+    try {
+      operation.run(XList.create(wave));
+    } catch (Exception e) {
+      Log.error("Wave failed: " + wave + " " + e);
+      wave.forEach(instance -> {
+        if (!rollout.result.getResults().containsKey(instance)) {
+          rollout.result.addFailure(instance, e);
+        }
+      });
+    } finally {
+      wave.forEach(i -> rollout.outOfService.remove(i.getId()));
+    }
+  }
+
+  private void replaceWave(XList<HiveInstance> wave, Function<HiveInstance, HiveInstance> replacement,
+      Rollout rollout) {
+    FleetResult<HiveInstance> result = rollout.result;
+    FleetResult<HiveInstance> launched = queen.fleet(wave).concurrency(wave.size()).run(replacement);
+    launched.getFailures().forEach(result::addFailure);
+
+    XMap<HiveInstance, HiveInstance> replacements = launched.getResults();
+    if (replacements.isEmpty()) {
+      return;
+    }
+
+    // only take the old targets out once their replacements are serving traffic
+    XList<String> newIds = XList.create(replacements.values()).map(HiveInstance::getId);
+    try {
+      loadBalancer.registerTargets(newIds);
+      awaitHealthy(newIds);
+    } catch (RuntimeException e) {
+      // the old targets are still serving, so back the replacements out instead of leaving them running
+      Log.error("Replacements never became healthy, terminating them: " + newIds);
+      try {
+        loadBalancer.deregisterTargets(newIds);
+      } catch (RuntimeException cleanup) {
+        e.addSuppressed(cleanup);
+      }
+      for (HiveInstance instance : replacements.values()) {
+        try {
+          instance.terminate();
+        } catch (RuntimeException cleanup) {
+          e.addSuppressed(cleanup);
+        }
+      }
+      throw e;
+    }
+
+    XList<String> oldIds = XList.create(replacements.keySet()).map(HiveInstance::getId);
+    loadBalancer.deregisterTargets(oldIds);
+    rollout.draining.addAll(oldIds);
+    replacements.forEach(result::addResult);
+  }
+
+  private void resizeWave(XList<HiveInstance> wave, InstanceType type, FleetResult<HiveInstance> result) {
+    XList<String> ids = wave.map(HiveInstance::getId);
+    loadBalancer.deregisterTargets(ids);
+    awaitDrained(ids);
+
+    FleetResult<Void> resized = queen.fleet(wave).concurrency(wave.size())
+        .forEach(instance -> instance.changeInstanceType(type));
+    resized.getFailures().forEach(result::addFailure);
+
+    XList<String> resizedIds = XList.create(resized.getResults().keySet()).map(HiveInstance::getId);
+    if (resizedIds.isEmpty()) {
+      return;
+    }
+    loadBalancer.registerTargets(resizedIds);
+    awaitHealthy(resizedIds);
+    queen.getInstances(resizedIds).forEach(instance -> result.addResult(instance, instance));
+  }
+
+  /**
+   * The number of healthy targets which aren't part of a wave in flight.
+   */
+  private int countHealthyInService(Rollout rollout) {
+    XMap<String, TargetHealthStateEnum> health = loadBalancer.getTargetHealthById();
+    health.keySet().removeAll(rollout.outOfService);
+    return countHealthy(health);
+  }
+
+  private void awaitHealthy(Collection<String> ids) {
+    Await.every(POLL_INTERVAL).timeout(healthyTimeout).verbose("Rollout: targets healthy").await(() -> {
+      XMap<String, TargetHealthStateEnum> health = loadBalancer.getTargetHealthById();
+      return ids.stream().allMatch(id -> health.get(id) == TargetHealthStateEnum.Healthy);
+    });
+  }
+
+  private void awaitDrained(Collection<String> ids) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    Await.every(POLL_INTERVAL).timeout(Duration.ofHours(1)).verbose("Rollout: targets drained").await(() -> {
+      XMap<String, TargetHealthStateEnum> health = loadBalancer.getTargetHealthById();
+      return ids.stream().allMatch(id -> {
+        TargetHealthStateEnum state = health.get(id);
+        return state != TargetHealthStateEnum.Draining && state != TargetHealthStateEnum.Healthy;
+      });
+    });
+  }
+
+  private static int countHealthy(XMap<String, TargetHealthStateEnum> health) {
+    return (int) health.values().stream().filter(s -> s == TargetHealthStateEnum.Healthy).count();
+  }
+
+  /**
+   * The state of a single replace() or resize() call, so that running the same RollingUpdate again starts fresh.
+   */
+  private static class Rollout {
+    private final FleetResult<HiveInstance> result = new FleetResult<>();
+
+    /**
+     * Targets which belong to a wave that is in flight. They don't count towards the healthy capacity.
+     */
+    private final Set<String> outOfService = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Old targets which replace() has deregistered.
+     */
+    private final Set<String> draining = ConcurrentHashMap.newKeySet();
+  }
+
+  private static interface WaveOperation {
+    public void run(XList<HiveInstance> wave);
+  }
+
+}
@@ -0,0 +1,137 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+
+import ox.x.XList;
+
+/**
+ * A condition on instance tags, answered from an InstanceIndex. For example, all of the qa nodes with role=web:
+ *
+ * <pre>
+ * TagQuery.and(TagQuery.prefix("Name", "qa"), TagQuery.eq("role", "web"))
+ * </pre>
+ */
+public abstract class TagQuery {
+
+  abstract Set<HiveInstance> evaluate(InstanceIndex index);
+
+  /**
+   * An upper bound on the number of instances this query can match, used to evaluate the cheapest part of an AND first.
+   */
+  abstract int estimate(InstanceIndex index);
+
+  public static TagQuery eq(String key, String value) {
+    return new TagQuery() {
+      @Override
+      Set<HiveInstance> evaluate(InstanceIndex index) {
+        return index.getEqual(key, value);
+      }
+
+      @Override
+      int estimate(InstanceIndex index) {
+        return index.getEqual(key, value).size();
+      }
+
+      @Override
+      public String toString() {
+        return key + "=" + value;
+      }
+    };
+  }
+
+  public static TagQuery prefix(String key, String prefix) {
+    return new TagQuery() {
+      @Override
+      Set<HiveInstance> evaluate(InstanceIndex index) {
+        return index.getWithPrefix(key, prefix);
+      }
+
+      @Override
+      int estimate(InstanceIndex index) {
+        return index.getWithKey(key).size();
+      }
+
+      @Override
+      public String toString() {
+        return key + "=" + prefix + "*";
+      }
+    };
+  }
+
+  public static TagQuery exists(String key) {
+    return new TagQuery() {
+      @Override
+      Set<HiveInstance> evaluate(InstanceIndex index) {
+        return index.getWithKey(key);
+      }
+
+      @Override
+      int estimate(InstanceIndex index) {
+        return index.getWithKey(key).size();
+      }
+
+      @Override
+      public String toString() {
+        return key + "=*";
+      }
+    };
+  }
+
+  public static TagQuery and(TagQuery... queries) {
+    checkArgument(queries.length > 0);
+    XList<TagQuery> parts = XList.of(queries);
+    return new TagQuery() {
+      @Override
+      Set<HiveInstance> evaluate(InstanceIndex index) {
+        XList<TagQuery> sorted = XList.create(parts);
+        sorted.sort(Comparator.comparingInt(q -> q.estimate(index)));
+
+        Set<HiveInstance> ret = new LinkedHashSet<>(sorted.get(0).evaluate(index));
+        for (int i = 1; i < sorted.size() && !ret.isEmpty(); i++) {
+          ret.retainAll(sorted.get(i).evaluate(index));
+        }
+        return ret;
+      }
+
+      @Override
+      int estimate(InstanceIndex index) {
+        return parts.stream().mapToInt(q -> q.estimate(index)).min().getAsInt();
+      }
+
+      @Override
+      public String toString() {
+        return "(" + Joiner.on(" AND ").join(parts) + ")";
+      }
+    };
+  }
+
+  public static TagQuery or(TagQuery... queries) {
+    checkArgument(queries.length > 0);
+    XList<TagQuery> parts = XList.of(queries);
+    return new TagQuery() {
+      @Override
+      Set<HiveInstance> evaluate(InstanceIndex index) {
+        Set<HiveInstance> ret = new LinkedHashSet<>();
+        parts.forEach(q -> ret.addAll(q.evaluate(index)));
+        return ret;
+      }
+
+      @Override
+      int estimate(InstanceIndex index) {
+        return parts.stream().mapToInt(q -> q.estimate(index)).sum();
+      }
+
+      @Override
+      public String toString() {
+        return "(" + Joiner.on(" OR ").join(parts) + ")";
+      }
+    };
+  }
+
+}
@@ -0,0 +1,137 @@
+package queen;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The most recent health of every target in each target group, shared by everything in this HiveQueen that reads
+ * target health (waiters, rolling updates, etc.).
+ *
+ * A snapshot is reused until it is older than maxAge. When it has to be refreshed, only one thread calls
+ * DescribeTargetHealth; the others wait for that call and read its result. Registering or deregistering targets
+ * invalidates the group's snapshot, and readers after that don't join a call which was already in flight.
+ */
+class TargetHealthCache {
+
+  private final HiveQueen queen;
+  private final Duration maxAge;
+
+  private final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+  public TargetHealthCache(HiveQueen queen, Duration maxAge) {
+    this.queen = queen;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * The health of each target in the group, keyed by instance id.
+   */
+  public ImmutableMap<String, TargetHealthStateEnum> get(String targetGroupArn) {
+    return groups.computeIfAbsent(targetGroupArn, Group::new).get();
+  }
+
+  public void invalidate(String targetGroupArn) {
+    Group group = groups.get(targetGroupArn);
+    if (group != null) {
+      group.invalidate();
+    }
+  }
+
+  private class Group {
+    private final String arn;
+
+    private ImmutableMap<String, TargetHealthStateEnum> snapshot = null;
+    private Instant fetchedAt = Instant.MIN;
+    private long generation = 0;
+    private CompletableFuture<ImmutableMap<String, TargetHealthStateEnum>> inFlight = null;
+    private long inFlightGeneration = -1;
+
+    public Group(String arn) {
+      this.arn = arn;
+    }
+
+    public ImmutableMap<String, TargetHealthStateEnum> get() {
+      CompletableFuture<ImmutableMap<String, TargetHealthStateEnum>> future;
+      boolean fetch = false;
+      long fetchGeneration;
+      synchronized (this) {
+        if (snapshot != null && Instant.now().isBefore(fetchedAt.plus(maxAge))) {
+          return snapshot;
+        }
+        // a fetch which started before the last (de)registration may not include it, so don't join that one
+        if (inFlight == null || inFlightGeneration != generation) {
+          inFlight = new CompletableFuture<>();
+          inFlightGeneration = generation;
+          fetch = true;
+        }
+        future = inFlight;
+        fetchGeneration = generation;
+      }
+
+      if (fetch) {
+        Instant start = Instant.now();
+        try {
+          ImmutableMap<String, TargetHealthStateEnum> result = describe();
+          synchronized (this) {
+            // if targets were (de)registered during the call, don't keep what we fetched
+            if (generation == fetchGeneration) {
+              snapshot = result;
+              fetchedAt = start;
+            }
+            clearInFlight(future);
+          }
+          future.complete(result);
+        } catch (RuntimeException e) {
+          synchronized (this) {
+            clearInFlight(future);
+          }
+          future.completeExceptionally(e);
+          throw e;
+        }
+      }
+
+      try {
+        return future.join();
+      } catch (CompletionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw e;
+      }
+    }
+
+    /**
+     * Only clears the given fetch, since a newer one may have replaced it after an invalidate().
+     */
+    private void clearInFlight(CompletableFuture<ImmutableMap<String, TargetHealthStateEnum>> future) {
+      if (inFlight == future) {
+        inFlight = null;
+      }
+    }
+
+    public synchronized void invalidate() {
+      generation++;
+      snapshot = null;
+    }
+
+    private ImmutableMap<String, TargetHealthStateEnum> describe() {
+      Map<String, TargetHealthStateEnum> ret = new LinkedHashMap<>();
+      for (TargetHealthDescription d : queen.getLoadBalancing()
+          .describeTargetHealth(new DescribeTargetHealthRequest().withTargetGroupArn(arn))
+          .getTargetHealthDescriptions()) {
+        ret.put(d.getTarget().getId(), TargetHealthStateEnum.fromValue(d.getTargetHealth().getState()));
+      }
+      return ImmutableMap.copyOf(ret);
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package queen;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+
+/**
+ * Makes every attempt (including SDK retries) wait for a token from the service's bucket, and feeds throttling errors
+ * back into the bucket's rate.
+ */
+class ThrottlingHandler extends RequestHandler2 {
+
+  private final TokenBucket bucket;
+
+  public ThrottlingHandler(TokenBucket bucket) {
+    this.bucket = bucket;
+  }
+
+  /**
+   * A handler with its own bucket, sized for the given service's API limits.
+   */
+  static ThrottlingHandler forService(String service) {
+    switch (service) {
+    case "ec2":
+      return new ThrottlingHandler(new TokenBucket(20, 50));
+    case "elasticloadbalancing":
+      return new ThrottlingHandler(new TokenBucket(10, 20));
+    case "route53":
+      return new ThrottlingHandler(new TokenBucket(5, 5));
+    default:
+      throw new IllegalArgumentException("Unknown service: " + service);
+    }
+  }
+
+  @Override
+  public void beforeAttempt(HandlerBeforeAttemptContext context) {
+    bucket.acquire();
+  }
+
+  /**
+   * Called for every attempt. afterError() is only called once all retries have failed, which would miss throttled
+   * attempts that a retry then recovered from.
+   */
+  @Override
+  public void afterAttempt(HandlerAfterAttemptContext context) {
+    Exception e = context.getException();
+    if (e == null) {
+      bucket.onSuccess();
+    } else if (e instanceof AmazonServiceException && AdaptiveRetryPolicy.isThrottling((AmazonServiceException) e)) {
+      bucket.onThrottled();
+    }
+  }
+
+}
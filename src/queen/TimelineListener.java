@@ -0,0 +1,18 @@
+package queen;
+
+import queen.OperationTimeline.Phase;
+
+/**
+ * Notified as HiveQueen's long-running operations progress. See HiveQueen.addTimelineListener().
+ */
+public interface TimelineListener {
+
+  /**
+   * Called as soon as each phase ends, while the operation is still running.
+   */
+  public default void onPhase(OperationTimeline timeline, Phase phase) {
+  }
+
+  public void onComplete(OperationTimeline timeline);
+
+}
@@ -0,0 +1,89 @@
+package queen;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ox.Log;
+import ox.x.XList;
+import queen.OperationTimeline.Phase;
+
+/**
+ * Aggregates the timelines of many operations, e.g. a whole fleet run, into per-operation and per-phase totals.
+ */
+public class TimelineReport implements TimelineListener {
+
+  private final Map<String, Stats> operations = new LinkedHashMap<>();
+  private final Map<String, Stats> phases = new LinkedHashMap<>();
+
+  @Override
+  public synchronized void onComplete(OperationTimeline timeline) {
+    operations.computeIfAbsent(timeline.getOperation(), Stats::new)
+        .add(timeline.getDuration(), 0, timeline.isSuccess());
+    for (Phase phase : timeline.getPhases()) {
+      phases.computeIfAbsent(timeline.getOperation() + " / " + phase.getName(), Stats::new)
+          .add(phase.getDuration(), phase.getPolls(), phase.isSuccess());
+    }
+  }
+
+  /**
+   * The total time spent in each phase of each operation (e.g. "changeInstanceType / await stopped"), across all
+   * instances.
+   */
+  public synchronized Map<String, Duration> getPhaseTotals() {
+    Map<String, Duration> ret = new LinkedHashMap<>();
+    sorted(phases).forEach(s -> ret.put(s.name, s.total));
+    return ret;
+  }
+
+  public void log() {
+    Log.info(toString());
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder("Operations:");
+    sorted(operations).forEach(s -> sb.append("\n  ").append(s));
+    sb.append("\nPhases:");
+    sorted(phases).forEach(s -> sb.append("\n  ").append(s));
+    return sb.toString();
+  }
+
+  private static XList<Stats> sorted(Map<String, Stats> stats) {
+    XList<Stats> ret = XList.create(stats.values());
+    ret.sort(Comparator.comparing((Stats s) -> s.total).reversed());
+    return ret;
+  }
+
+  private static class Stats {
+    private final String name;
+    private int count = 0, failures = 0;
+    private long polls = 0;
+    private Duration total = Duration.ZERO, max = Duration.ZERO;
+
+    public Stats(String name) {
+      this.name = name;
+    }
+
+    public void add(Duration duration, int polls, boolean success) {
+      count++;
+      if (!success) {
+        failures++;
+      }
+      this.polls += polls;
+      total = total.plus(duration);
+      if (duration.compareTo(max) > 0) {
+        max = duration;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name + ": " + count + "x, total=" + total.toSeconds() + "s mean=" + total.dividedBy(count).toMillis()
+          + "ms max=" + max.toMillis() + "ms" + (polls > 0 ? " polls=" + polls : "")
+          + (failures > 0 ? " failures=" + failures : "");
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+package queen;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import queen.OperationTimeline.Phase;
+
+/**
+ * Tracks the timeline of the operation running on the current thread and tells the listeners about it.
+ */
+class Timelines {
+
+  private final List<TimelineListener> listeners = new CopyOnWriteArrayList<>();
+
+  private final ThreadLocal<OperationTimeline> current = new ThreadLocal<>();
+  private final ThreadLocal<int[]> polls = new ThreadLocal<>();
+
+  /**
+   * An extra listener for operations started on this thread, e.g. the FleetExecutor collecting its own report.
+   */
+  private final ThreadLocal<TimelineListener> collector = new ThreadLocal<>();
+
+  public void addListener(TimelineListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(TimelineListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Runs the given operation with a new timeline, unless this thread is already inside an operation, in which case its
+   * phases are added to that one.
+   */
+  public <T> T operation(String operation, Object target, Supplier<T> fn) {
+    if (current.get() != null) {
+      return fn.get();
+    }
+    OperationTimeline timeline = new OperationTimeline(operation, String.valueOf(target));
+    current.set(timeline);
+    Throwable error = null;
+    try {
+      return fn.get();
+    } catch (RuntimeException | Error e) {
+      error = e;
+      throw e;
+    } finally {
+      current.remove();
+      timeline.finish(error);
+      forEachListener(l -> l.onComplete(timeline));
+    }
+  }
+
+  public void operation(String operation, Object target, Runnable fn) {
+    operation(operation, target, () -> {
+      fn.run();
+      return null;
+    });
+  }
+
+  public <T> T phase(String name, Supplier<T> fn) {
+    OperationTimeline timeline = current.get();
+    if (timeline == null) {
+      return fn.get();
+    }
+    int[] outerPolls = polls.get();
+    int[] phasePolls = new int[1];
+    polls.set(phasePolls);
+    Instant start = Instant.now();
+    boolean success = false;
+    try {
+      T ret = fn.get();
+      success = true;
+      return ret;
+    } finally {
+      polls.set(outerPolls);
+      Phase phase = new Phase(name, Duration.between(start, Instant.now()), phasePolls[0], success);
+      timeline.addPhase(phase);
+      forEachListener(l -> l.onPhase(timeline, phase));
+    }
+  }
+
+  public void phase(String name, Runnable fn) {
+    phase(name, () -> {
+      fn.run();
+      return null;
+    });
+  }
+
+  /**
+   * Wraps an Await condition so that each check is counted as a poll of the current phase.
+   */
+  public Supplier<Boolean> counted(Supplier<Boolean> condition) {
+    int[] phasePolls = polls.get();
+    if (phasePolls == null) {
+      return condition;
+    }
+    return () -> {
+      phasePolls[0]++;
+      return condition.get();
+    };
+  }
+
+  /**
+   * Runs fn with an extra listener which only hears about operations started by fn on this thread.
+   */
+  public <T> T collectInto(TimelineListener listener, Supplier<T> fn) {
+    TimelineListener previous = collector.get();
+    collector.set(listener);
+    try {
+      return fn.get();
+    } finally {
+      collector.set(previous);
+    }
+  }
+
+  private void forEachListener(Consumer<TimelineListener> fn) {
+    TimelineListener extra = collector.get();
+    if (extra != null) {
+      fn.accept(extra);
+    }
+    listeners.forEach(fn);
+  }
+
+}
@@ -0,0 +1,71 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ox.util.Utils.sleep;
+
+/**
+ * A client-side rate limiter for calls to a single AWS service.
+ *
+ * The refill rate adapts to the service: it is halved every time we get throttled and then slowly climbs back to the
+ * configured maximum as calls succeed.
+ */
+class TokenBucket {
+
+  private final double maxRate, minRate, capacity;
+
+  private double rate;
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+
+  /**
+   * @param maxRate The steady-state number of calls per second.
+   * @param capacity The number of calls which can be made in a burst.
+   */
+  public TokenBucket(double maxRate, double capacity) {
+    checkArgument(maxRate > 0 && capacity >= 1);
+    this.maxRate = maxRate;
+    this.minRate = Math.min(1, maxRate);
+    this.capacity = capacity;
+    this.rate = maxRate;
+    this.tokens = capacity;
+  }
+
+  /**
+   * Blocks until a call is allowed. Callers are served in the order they arrive.
+   */
+  public void acquire() {
+    long waitMillis;
+    synchronized (this) {
+      refill();
+      tokens--;
+      waitMillis = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000);
+    }
+    if (waitMillis > 0) {
+      sleep(waitMillis);
+    }
+  }
+
+  public synchronized void onThrottled() {
+    refill();
+    rate = Math.max(minRate, rate / 2);
+    tokens = Math.min(tokens, 0);
+  }
+
+  public synchronized void onSuccess() {
+    if (rate < maxRate) {
+      refill();
+      rate = Math.min(maxRate, rate + maxRate / 50);
+    }
+  }
+
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+    lastRefill = now;
+  }
+
+}
@@ -0,0 +1,280 @@
+package queen;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+
+/**
+ * Keeps a number of instances of one image and instance type launched but stopped, so that scaling out is a start
+ * (well under a minute) instead of a launch (several minutes).
+ *
+ * Pooled instances are found by their hive:warm-pool tag, so a pool picks up where it left off after a restart. Taking
+ * an instance removes the tag, and the pool refills itself in the background.
+ */
+public class WarmPool {
+
+  static final String POOL_TAG = "hive:warm-pool";
+
+  private static final Duration LAUNCH_TIMEOUT = Duration.ofMinutes(10);
+
+  private final HiveQueen queen;
+  private final String imageId;
+  private final InstanceType type;
+  private final String key;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hive-warm-pool").build());
+
+  /**
+   * Instances we've launched (or found running) which are on their way to being stopped.
+   */
+  private final Set<String> filling = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Instances we've taken out of the pool. EC2 can keep returning them for the pool's tag for a while after the tag is
+   * removed, so they're ignored until it stops doing so.
+   */
+  private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Held for the whole of a refill, so that two refills don't both launch the missing instances, and by drain(). Claims
+   * don't wait on it. When both are needed, take this before the pool's own monitor.
+   */
+  private final Object refillLock = new Object();
+
+  private volatile int size = 0;
+  private volatile XOptional<String> iamRole = XOptional.empty();
+  private ScheduledFuture<?> schedule = null;
+
+  WarmPool(HiveQueen queen, String imageId, InstanceType type) {
+    this.queen = queen;
+    this.imageId = imageId;
+    this.type = type;
+    this.key = key(imageId, type);
+  }
+
+  static String key(String imageId, InstanceType type) {
+    return imageId + "/" + type;
+  }
+
+  /**
+   * Sets the number of stopped instances to keep in the pool and starts filling (or shrinking) it in the background.
+   */
+  public WarmPool size(int size) {
+    checkArgument(size >= 0, "size must not be negative.");
+    this.size = size;
+    refillAsync();
+    return this;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public WarmPool iamRole(String iamRole) {
+    this.iamRole = XOptional.ofNullable(iamRole);
+    return this;
+  }
+
+  /**
+   * Also checks the pool on a schedule, which replaces pooled instances that were terminated by someone else.
+   */
+  public synchronized WarmPool refillEvery(Duration every) {
+    if (schedule != null) {
+      schedule.cancel(false);
+    }
+    schedule = executor.scheduleWithFixedDelay(this::refillQuietly, every.toMillis(), every.toMillis(),
+        TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * All of the instances in the pool, including ones which are still being launched or stopped.
+   */
+  public XList<HiveInstance> getInstances() {
+    return describePool().filter(i -> !claimed.contains(i.getId()));
+  }
+
+  private XList<HiveInstance> describePool() {
+    return queen.getActiveInstances(new Filter("tag:" + POOL_TAG).withValues(key));
+  }
+
+  /**
+   * The pooled instances which are stopped and can be taken.
+   */
+  public XList<HiveInstance> getReady() {
+    return getInstances().filter(i -> i.isStopped() && !filling.contains(i.getId()));
+  }
+
+  public HiveInstance take(String instanceName) {
+    return take(instanceName, ImmutableMap.of());
+  }
+
+  /**
+   * Starts a pooled instance with the given name and tags and waits for it to get an IP. If the pool is empty, this
+   * falls back to launching a new instance.
+   */
+  public HiveInstance take(String instanceName, Map<String, String> tags) {
+    return queen.getTimelines().operation("warm start", instanceName, () -> {
+      XOptional<HiveInstance> pooled = queen.getTimelines().phase("claim", () -> claim(instanceName, tags));
+      refillAsync();
+
+      if (pooled.isEmpty()) {
+        Log.info("Warm pool " + key + " is empty, launching " + instanceName + " instead.");
+        return queen.launchInstanceFromImage(instanceName, type, imageId, iamRole, tags);
+      }
+      HiveInstance instance = pooled.get();
+      instance.start();
+      return instance.awaitIp();
+    });
+  }
+
+  /**
+   * Takes a stopped instance out of the pool by replacing its pool tag with the caller's tags. Synchronized so that two
+   * threads can't claim the same instance.
+   */
+  private synchronized XOptional<HiveInstance> claim(String instanceName, Map<String, String> tags) {
+    XOptional<HiveInstance> ret = getReady().first();
+    if (ret.isPresent()) {
+      Map<String, String> newTags = new LinkedHashMap<>(tags);
+      newTags.put("Name", instanceName);
+      newTags.put(POOL_TAG, "");
+      String id = ret.get().getId();
+      claimed.add(id);
+      try {
+        return XOptional.of(ret.get().withTags(newTags));
+      } catch (RuntimeException e) {
+        // the instance wasn't taken, so it goes back to the pool
+        claimed.remove(id);
+        throw e;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Launches instances for any missing pool slots and terminates extras if the pool was shrunk. Newly launched
+   * instances are stopped in the background once they're running.
+   */
+  public void refill() {
+    synchronized (refillLock) {
+      XList<HiveInstance> all = describePool();
+      Set<String> ids = new HashSet<>();
+      all.forEach(i -> ids.add(i.getId()));
+      // once EC2 no longer lists a claimed instance under the pool tag, we don't need to remember it
+      claimed.retainAll(ids);
+      XList<HiveInstance> pool = all.filter(i -> !claimed.contains(i.getId()));
+
+      for (HiveInstance instance : pool) {
+        if (instance.isRunning() && filling.add(instance.getId())) {
+          stopInBackground(instance);
+        }
+      }
+
+      ids.clear();
+      pool.forEach(i -> ids.add(i.getId()));
+      ids.addAll(filling);
+
+      int missing = size - ids.size();
+      if (missing > 0) {
+        Log.debug("Adding " + missing + " instance(s) to warm pool " + key);
+        XList<HiveInstance> launched = queen.runInstances(missing, type, imageId, iamRole,
+            ImmutableMap.of("Name", "warm pool " + key, POOL_TAG, key));
+        for (HiveInstance instance : launched) {
+          filling.add(instance.getId());
+          // an instance can be terminated before it ever runs, and then it would never leave the filling set
+          queen.getInstanceWatcher().await(instance.getId(), i -> i.isRunning() || i.isTerminated())
+              .orTimeout(LAUNCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+              .thenAccept(i -> {
+                if (i.isTerminated()) {
+                  filling.remove(i.getId());
+                } else {
+                  stopInBackground(i);
+                }
+              })
+              .exceptionally(e -> {
+                filling.remove(instance.getId());
+                return null;
+              });
+        }
+      } else if (missing < 0) {
+        terminateExtras(pool.filter(HiveInstance::isStopped), -missing);
+      }
+    }
+  }
+
+  /**
+   * Synchronized with claim() so that we don't terminate an instance that's being taken.
+   */
+  private synchronized void terminateExtras(XList<HiveInstance> extras, int count) {
+    extras = extras.filter(i -> !claimed.contains(i.getId()));
+    for (int i = 0; i < count && i < extras.size(); i++) {
+      extras.get(i).terminate();
+    }
+  }
+
+  private void stopInBackground(HiveInstance instance) {
+    queen.async().stop(instance).whenComplete((stopped, e) -> {
+      filling.remove(instance.getId());
+      if (e != null) {
+        Log.warn("Could not stop warm pool instance " + instance.getId() + ": " + e);
+      }
+    });
+  }
+
+  private void refillAsync() {
+    executor.execute(this::refillQuietly);
+  }
+
+  private void refillQuietly() {
+    try {
+      refill();
+    } catch (Exception e) {
+      Log.error("Warm pool " + key + " refill failed: " + e);
+    }
+  }
+
+  /**
+   * Stops refilling and terminates every instance in the pool. The pool can't be used afterwards; HiveQueen.warmPool()
+   * returns a new one.
+   */
+  public void drain() {
+    // waits for a refill in progress, so it can't launch instances after we've terminated the pool
+    synchronized (refillLock) {
+      synchronized (this) {
+        size = 0;
+        if (schedule != null) {
+          schedule.cancel(false);
+          schedule = null;
+        }
+        executor.shutdownNow();
+        queen.removeWarmPool(key, this);
+        getInstances().forEach(HiveInstance::terminate);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "WarmPool " + key + " (size " + size + ")";
+  }
+
+}
@@ -0,0 +1,267 @@
+package queen;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+
+/**
+ * An in-memory copy of the record sets in each hosted zone we touch, so that existence checks, lookups and "is this
+ * record already correct?" decisions don't each need a ListResourceRecordSets call.
+ *
+ * A zone is loaded in full (following every page) the first time it's needed and is then kept current with the changes
+ * this library sends. Changes made outside this process are picked up when the zone is reloaded after the TTL, except
+ * that isCurrent() always checks the live record before saying a write can be skipped. isCurrentInIndex() doesn't, for
+ * callers which check many records at once.
+ */
+class ZoneRecordIndex {
+
+  private static final String MAX_ITEMS_PER_PAGE = "300";
+
+  private final AmazonRoute53 route53;
+  private final Duration ttl;
+
+  private final Map<String, Zone> zones = new HashMap<>();
+
+  /**
+   * Changes made to each zone which is being loaded, applied to it once it's loaded. A zone invalidated while loading
+   * is removed from here, and its load isn't kept.
+   */
+  private final Map<String, List<Change>> loading = new HashMap<>();
+
+  /**
+   * Held while loading a zone, so that each zone is only loaded once at a time without blocking the other zones.
+   */
+  private final Map<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+  public ZoneRecordIndex(AmazonRoute53 route53, Duration ttl) {
+    this.route53 = route53;
+    this.ttl = ttl;
+  }
+
+  /**
+   * All of the record sets with the given name, of any type.
+   */
+  public XList<ResourceRecordSet> getRecords(HostedZone zone, String name) {
+    return getZone(zone).getRecords(name);
+  }
+
+  public XOptional<ResourceRecordSet> getRecord(HostedZone zone, String name, RRType type) {
+    return getZone(zone).getRecord(name, type.toString());
+  }
+
+  /**
+   * Whether the zone already has exactly this record set, in which case an UPSERT of it would change nothing.
+   *
+   * The index may be out of date (another process or the console may have changed the record), so when it says the
+   * record is current, that one record is looked up in Route53 before we agree to skip the write.
+   */
+  public boolean isCurrent(HostedZone zone, ResourceRecordSet record) {
+    if (!isCurrentInIndex(zone, record)) {
+      return false;
+    }
+    XOptional<ResourceRecordSet> live = getLiveRecord(zone, record.getName(), record.getType());
+    return live.isPresent() && isSame(live.get(), record);
+  }
+
+  /**
+   * Like isCurrent(), but only asks the index, so it costs no calls once the zone is loaded. It can be wrong if the
+   * record was changed outside this process since the zone was loaded.
+   */
+  public boolean isCurrentInIndex(HostedZone zone, ResourceRecordSet record) {
+    XOptional<ResourceRecordSet> existing = getRecord(zone, record.getName(), RRType.fromValue(record.getType()));
+    return existing.isPresent() && isSame(existing.get(), record);
+  }
+
+  /**
+   * Looks up a single record set in Route53, bypassing the index, and updates the index with what was found.
+   */
+  public XOptional<ResourceRecordSet> getLiveRecord(HostedZone zone, String name, String type) {
+    XOptional<ResourceRecordSet> ret = fetch(zone, name, type);
+    // if the zone isn't loaded, the next load will see this record anyway
+    Zone z = getIfFresh(zone.getId());
+    if (z != null) {
+      z.update(key(name, type), ret.orElseNull());
+    }
+    return ret;
+  }
+
+  /**
+   * Updates the index with changes which Route53 has accepted.
+   */
+  public synchronized void onChanged(HostedZone zone, Collection<Change> changes) {
+    Zone z = zones.get(zone.getId());
+    if (z != null) {
+      z.apply(changes);
+    }
+    List<Change> pending = loading.get(zone.getId());
+    if (pending != null) {
+      pending.addAll(changes);
+    }
+  }
+
+  /**
+   * Forgets the zone, e.g. because a change to it failed and our copy may be wrong.
+   */
+  public synchronized void invalidate(HostedZone zone) {
+    zones.remove(zone.getId());
+    loading.remove(zone.getId());
+  }
+
+  /**
+   * Loads the zone if we don't have a fresh copy. The (possibly many-page) load happens outside of this index's lock,
+   * so reads and changes for other zones carry on in the meantime.
+   */
+  private Zone getZone(HostedZone zone) {
+    String id = zone.getId();
+    Zone ret = getIfFresh(id);
+    if (ret != null) {
+      return ret;
+    }
+    synchronized (loadLocks.computeIfAbsent(id, k -> new Object())) {
+      ret = getIfFresh(id);
+      if (ret != null) {
+        return ret;
+      }
+      synchronized (this) {
+        loading.put(id, new ArrayList<>());
+      }
+      Instant expiration = Instant.now().plus(ttl);
+      XList<ResourceRecordSet> loaded;
+      try {
+        loaded = load(zone);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          loading.remove(id);
+        }
+        throw e;
+      }
+      synchronized (this) {
+        ret = new Zone(loaded, expiration);
+        List<Change> changedWhileLoading = loading.remove(id);
+        if (changedWhileLoading != null) {
+          ret.apply(changedWhileLoading);
+          zones.put(id, ret);
+        }
+      }
+      return ret;
+    }
+  }
+
+  private synchronized Zone getIfFresh(String zoneId) {
+    Zone ret = zones.get(zoneId);
+    return ret == null || Instant.now().isAfter(ret.expiration) ? null : ret;
+  }
+
+  /**
+   * Looks up a single record set in Route53.
+   */
+  private XOptional<ResourceRecordSet> fetch(HostedZone zone, String name, String type) {
+    ListResourceRecordSetsResult result = route53.listResourceRecordSets(new ListResourceRecordSetsRequest(zone.getId())
+        .withStartRecordName(name)
+        .withStartRecordType(type)
+        .withMaxItems("1"));
+    return XList.create(result.getResourceRecordSets())
+        .filter(r -> key(r.getName(), r.getType()).equals(key(name, type)))
+        .first();
+  }
+
+  private XList<ResourceRecordSet> load(HostedZone zone) {
+    XList<ResourceRecordSet> ret = XList.create();
+    ListResourceRecordSetsRequest request = new ListResourceRecordSetsRequest(zone.getId())
+        .withMaxItems(MAX_ITEMS_PER_PAGE);
+    while (true) {
+      ListResourceRecordSetsResult result = route53.listResourceRecordSets(request);
+      ret.addAll(result.getResourceRecordSets());
+      if (!Boolean.TRUE.equals(result.getIsTruncated())) {
+        break;
+      }
+      request = new ListResourceRecordSetsRequest(zone.getId())
+          .withMaxItems(MAX_ITEMS_PER_PAGE)
+          .withStartRecordName(result.getNextRecordName())
+          .withStartRecordType(result.getNextRecordType())
+          .withStartRecordIdentifier(result.getNextRecordIdentifier());
+    }
+    Log.debug("Loaded " + ret.size() + " records from zone " + zone.getName());
+    return ret;
+  }
+
+  private static boolean isSame(ResourceRecordSet a, ResourceRecordSet b) {
+    if (a.getAliasTarget() != null || b.getAliasTarget() != null) {
+      return false;
+    }
+    return Objects.equals(a.getTTL(), b.getTTL()) && values(a).equals(values(b));
+  }
+
+  private static XList<String> values(ResourceRecordSet record) {
+    XList<String> ret = XList.create(record.getResourceRecords()).map(ResourceRecord::getValue)
+        .map(v -> HiveQueen.normalizeDomain(v).toLowerCase());
+    ret.sort(null);
+    return ret;
+  }
+
+  private static String key(String name, String type) {
+    return HiveQueen.normalizeDomain(name).toLowerCase() + " " + type;
+  }
+
+  private static class Zone {
+    private final TreeMap<String, ResourceRecordSet> records = new TreeMap<>();
+    private final Instant expiration;
+
+    public Zone(Collection<ResourceRecordSet> records, Instant expiration) {
+      records.forEach(r -> this.records.put(key(r.getName(), r.getType()), r));
+      this.expiration = expiration;
+    }
+
+    public synchronized XList<ResourceRecordSet> getRecords(String name) {
+      // keys for one name are adjacent, since they only differ by the type after the space
+      String prefix = HiveQueen.normalizeDomain(name).toLowerCase() + " ";
+      return XList.create(records.subMap(prefix, prefix + Character.MAX_VALUE).values());
+    }
+
+    public synchronized XOptional<ResourceRecordSet> getRecord(String name, String type) {
+      return XOptional.ofNullable(records.get(key(name, type)));
+    }
+
+    public synchronized void update(String key, ResourceRecordSet record) {
+      if (record == null) {
+        records.remove(key);
+      } else {
+        records.put(key, record);
+      }
+    }
+
+    public synchronized void apply(Collection<Change> changes) {
+      for (Change change : changes) {
+        ResourceRecordSet record = change.getResourceRecordSet();
+        String key = key(record.getName(), record.getType());
+        if (ChangeAction.fromValue(change.getAction()) == ChangeAction.DELETE) {
+          records.remove(key);
+        } else {
+          records.put(key, record);
+        }
+      }
+    }
+  }
+
+}
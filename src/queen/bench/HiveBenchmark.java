@@ -0,0 +1,227 @@
+package queen.bench;
+
+import static ox.util.Utils.format;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.google.common.base.Stopwatch;
+
+import ox.Await;
+import ox.Log;
+import ox.x.XList;
+import ox.x.XOptional;
+import queen.ApiMetrics;
+import queen.DNSBatch;
+import queen.FleetResult;
+import queen.FleetSpec;
+import queen.HiveInstance;
+import queen.HiveLoadBalancer;
+import queen.HiveQueen;
+import queen.WarmPool;
+import queen.local.LocalAws;
+
+/**
+ * Runs HiveQueen's common workflows against LocalAws and reports the wall time and the number of API calls each one
+ * made, broken down by operation.
+ *
+ * The stand-in's delays are scaled down from real AWS so the whole suite runs in a few minutes, but the relative cost
+ * of each workflow (and how many calls it makes) is what we care about here.
+ */
+public class HiveBenchmark {
+
+  private static final int FLEET_SIZE = 20;
+
+  private final XList<String> report = XList.create();
+
+  public static void main(String[] args) {
+    new HiveBenchmark().run();
+  }
+
+  public void run() {
+    scenario("target health (40 targets, 10 polls)", this::targetHealth);
+    scenario("target health by id (40 targets, 10 polls)", this::targetHealthById);
+    scenario("clone with 10 tags", this::cloneInstance);
+    scenario("clone from a pre-baked image", this::clonePrebaked);
+    scenario("image " + FLEET_SIZE + " instances", this::imageFleet);
+    scenario("launch " + FLEET_SIZE + " instances", this::launch);
+    scenario("take 5 instances from a warm pool", this::warmPool);
+    scenario("rollout: resize " + FLEET_SIZE + " instances", this::rollout);
+    scenario("rolling resize (10 targets, waves of 2)", this::rollingResize);
+    scenario("dns: " + FLEET_SIZE + " serial upserts", this::dnsSerial);
+    scenario("dns: " + FLEET_SIZE + " batched upserts", this::dnsBatch);
+    scenario("dns: " + FLEET_SIZE + " serial upserts, already correct", this::dnsNoOp);
+    scenario("reconcile " + FLEET_SIZE + " instances (drift, then no-op)", this::reconcile);
+
+    Log.info("");
+    report.forEach(Log::info);
+  }
+
+  private void scenario(String name, Consumer<LocalAws> scenario) {
+    LocalAws aws = new LocalAws()
+        .latency(Duration.ofMillis(20))
+        .throttleAbove(100)
+        .retries(true);
+
+    ApiMetrics metrics = new ApiMetrics();
+    aws.metrics(metrics);
+
+    Log.info("Running: " + name);
+    Stopwatch watch = Stopwatch.createStarted();
+    scenario.accept(aws);
+    watch.stop();
+
+    report.add(format("{0}: {1} ms, {2} calls {3}", name, watch.elapsed().toMillis(), aws.getTotalCalls(),
+        aws.getCallCounts()));
+    report.add(metrics.toString());
+  }
+
+  private HiveLoadBalancer seedLoadBalancer(LocalAws aws, HiveQueen queen, int targets) {
+    String imageId = aws.getEC2().addImage("base");
+    XList<String> ids = XList.create();
+    for (int i = 0; i < targets; i++) {
+      ids.add(aws.getEC2().addInstance("web" + i, InstanceType.T3Small.toString(), imageId));
+    }
+    String arn = aws.getLoadBalancing().addLoadBalancer("bench");
+    aws.getLoadBalancing().addTargets(arn, ids);
+    HiveLoadBalancer ret = queen.getLoadBalancer("bench");
+    aws.resetCallCounts();
+    return ret;
+  }
+
+  private XList<HiveInstance> seedFleet(LocalAws aws, HiveQueen queen) {
+    String imageId = aws.getEC2().addImage("base");
+    XList<String> ids = XList.create();
+    for (int i = 1; i <= FLEET_SIZE; i++) {
+      ids.add(aws.getEC2().addInstance("qa" + i + ".ender.com", InstanceType.T2Micro.toString(), imageId));
+    }
+    XList<HiveInstance> ret = queen.getInstances(ids);
+    aws.resetCallCounts();
+    return ret;
+  }
+
+  private void targetHealth(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    HiveLoadBalancer lb = seedLoadBalancer(aws, queen, 40);
+    for (int i = 0; i < 10; i++) {
+      lb.getTargetsWithHealth();
+    }
+  }
+
+  private void targetHealthById(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    HiveLoadBalancer lb = seedLoadBalancer(aws, queen, 40);
+    for (int i = 0; i < 10; i++) {
+      lb.getTargetHealthById();
+    }
+  }
+
+  private void cloneInstance(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    String imageId = aws.getEC2().addImage("base");
+    HiveInstance source = queen.getInstance(aws.getEC2().addInstance("source", InstanceType.T3Small.toString(),
+        imageId));
+    for (int i = 0; i < 10; i++) {
+      source = source.withTag("tag" + i, "value" + i);
+    }
+    aws.resetCallCounts();
+
+    queen.cloneInstance(source.getId(), false, false, true);
+  }
+
+  private void clonePrebaked(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    String imageId = aws.getEC2().addImage("base");
+    HiveInstance source = queen.getInstance(aws.getEC2().addInstance("source", InstanceType.T3Small.toString(),
+        imageId));
+    String bakedId = queen.images().bake(source, false);
+    queen.getImageWatcher().awaitAvailable(bakedId).join();
+    aws.resetCallCounts();
+
+    queen.cloneInstance(source.getId(), false, true, true);
+  }
+
+  private void imageFleet(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    queen.images().bakeAll(seedFleet(aws, queen), false);
+  }
+
+  private void launch(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    String imageId = aws.getEC2().addImage("base");
+    XList<String> names = XList.create();
+    for (int i = 1; i <= FLEET_SIZE; i++) {
+      names.add("qa" + i + ".ender.com");
+    }
+    queen.launchInstancesFromImage(names, InstanceType.T3Small, imageId, XOptional.empty());
+  }
+
+  private void warmPool(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    String imageId = aws.getEC2().addImage("base");
+    WarmPool pool = queen.warmPool(imageId, InstanceType.T3Small).size(5);
+    Await.every(Duration.ofSeconds(1)).timeout(Duration.ofMinutes(5)).await(() -> pool.getReady().size() == 5);
+    aws.resetCallCounts();
+
+    for (int i = 1; i <= 5; i++) {
+      pool.take("qa" + i + ".ender.com");
+    }
+  }
+
+  private void rollout(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    XList<HiveInstance> fleet = seedFleet(aws, queen);
+    FleetResult<Void> result = queen.fleet(fleet).concurrency(FLEET_SIZE)
+        .forEach(instance -> instance.changeInstanceType(InstanceType.T3Small))
+        .checkSuccess();
+    report.add(result.getTimelineReport().toString());
+  }
+
+  private void rollingResize(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    HiveLoadBalancer lb = seedLoadBalancer(aws, queen, 10);
+    lb.rollingUpdate().waveSize(2).minHealthy(6).resize(InstanceType.T3Medium).checkSuccess();
+  }
+
+  private void dnsSerial(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    aws.getRoute53().addHostedZone("ender.com");
+    XList<HiveInstance> fleet = seedFleet(aws, queen);
+    fleet.forEach(instance -> queen.createDNSRecord(instance.getName(), instance.getIp(), true));
+  }
+
+  private void dnsBatch(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    aws.getRoute53().addHostedZone("ender.com");
+    XList<HiveInstance> fleet = seedFleet(aws, queen);
+    DNSBatch batch = queen.dnsBatch();
+    fleet.forEach(instance -> batch.upsert(instance.getName(), instance.getIp()));
+    batch.apply(true);
+  }
+
+  private void dnsNoOp(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    aws.getRoute53().addHostedZone("ender.com");
+    XList<HiveInstance> fleet = seedFleet(aws, queen);
+    DNSBatch batch = queen.dnsBatch();
+    fleet.forEach(instance -> batch.upsert(instance.getName(), instance.getIp()));
+    batch.apply(true);
+    aws.resetCallCounts();
+
+    fleet.forEach(instance -> queen.createDNSRecord(instance.getName(), instance.getIp(), true));
+  }
+
+  private void reconcile(LocalAws aws) {
+    HiveQueen queen = aws.createQueen();
+    aws.getRoute53().addHostedZone("ender.com");
+    XList<HiveInstance> fleet = seedFleet(aws, queen);
+    FleetSpec spec = new FleetSpec().instances(fleet.map(HiveInstance::getName))
+        .type(InstanceType.T2Micro)
+        .tag("env", "qa")
+        .routeNamesToInstances();
+    queen.reconciler(spec).apply().checkSuccess();
+    Log.info("Remaining changes: " + queen.reconciler(spec).plan());
+  }
+
+}
@@ -0,0 +1,255 @@
+package queen.local;
+
+import static ox.util.Utils.sleep;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.AmazonWebServiceRequest;
+
+import queen.ApiMetrics;
+import queen.ClientPipeline;
+import queen.HiveQueen;
+import queen.MetricsSink;
+
+/**
+ * An in-memory stand-in for the EC2, ELBv2 and Route53 operations HiveQueen uses, so that HiveQueen's behavior and
+ * performance can be measured without touching a real account.
+ *
+ * Every call pays the configured latency, counts against a per-service throttling limit, and is recorded in the call
+ * counts. Newly created instances and images aren't visible to describe calls until the consistency delay has passed,
+ * just like in EC2. State transitions (pending, stopping, image creation, DNS propagation, target health) are driven
+ * by wall-clock time.
+ *
+ * Calls go through the same handlers a real HiveQueen client has (see queen.ClientPipeline), so client-side rate
+ * limiting and metrics behave as they would against AWS.
+ */
+public class LocalAws {
+
+  private Duration latency = Duration.ofMillis(50);
+  private Duration consistencyDelay = Duration.ofSeconds(1);
+  private Duration pendingDuration = Duration.ofSeconds(3);
+  private Duration stopDuration = Duration.ofSeconds(3);
+  private Duration imageDuration = Duration.ofSeconds(5);
+  private Duration dnsPropagation = Duration.ofSeconds(3);
+  private Duration healthyDelay = Duration.ofSeconds(3);
+  private Duration drainDelay = Duration.ofSeconds(3);
+  private int callsPerSecond = Integer.MAX_VALUE;
+  private volatile MetricsSink metricsSink = null;
+
+  private final Map<String, AtomicInteger> callCounts = new TreeMap<>();
+  private final Map<String, Deque<Instant>> recentCalls = new TreeMap<>();
+  private final Map<String, ClientPipeline> pipelines = new TreeMap<>();
+
+  final LocalEC2 ec2 = new LocalEC2(this);
+  final LocalRoute53 route53 = new LocalRoute53(this);
+  final LocalLoadBalancing loadBalancing = new LocalLoadBalancing(this);
+
+  public LocalAws() {
+    for (String service : List.of("ec2", "elasticloadbalancing", "route53")) {
+      pipelines.put(service, new ClientPipeline(service, call -> {
+        MetricsSink sink = metricsSink;
+        if (sink != null) {
+          sink.onCall(call);
+        }
+      }));
+    }
+  }
+
+  /**
+   * Creates a HiveQueen which talks to this stand-in. Unless another sink was configured, calls are reported to the
+   * first queen's getMetrics().
+   */
+  public HiveQueen createQueen() {
+    HiveQueen ret = new HiveQueen(ec2, route53, loadBalancing);
+    if (metricsSink == null) {
+      metricsSink = ret.getMetrics();
+    }
+    return ret;
+  }
+
+  /**
+   * Reports every call (with its retries) to the given sink, the same way HiveQueen's own clients do.
+   */
+  public LocalAws metrics(MetricsSink metricsSink) {
+    this.metricsSink = metricsSink;
+    return this;
+  }
+
+  public LocalAws latency(Duration latency) {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * How long after creation an instance or image is invisible to describe calls.
+   */
+  public LocalAws consistencyDelay(Duration consistencyDelay) {
+    this.consistencyDelay = consistencyDelay;
+    return this;
+  }
+
+  public LocalAws pendingDuration(Duration pendingDuration) {
+    this.pendingDuration = pendingDuration;
+    return this;
+  }
+
+  public LocalAws stopDuration(Duration stopDuration) {
+    this.stopDuration = stopDuration;
+    return this;
+  }
+
+  public LocalAws imageDuration(Duration imageDuration) {
+    this.imageDuration = imageDuration;
+    return this;
+  }
+
+  public LocalAws dnsPropagation(Duration dnsPropagation) {
+    this.dnsPropagation = dnsPropagation;
+    return this;
+  }
+
+  public LocalAws healthyDelay(Duration healthyDelay) {
+    this.healthyDelay = healthyDelay;
+    return this;
+  }
+
+  public LocalAws drainDelay(Duration drainDelay) {
+    this.drainDelay = drainDelay;
+    return this;
+  }
+
+  /**
+   * Calls to a single service above this rate fail with a throttling error.
+   */
+  public LocalAws throttleAbove(int callsPerSecond) {
+    this.callsPerSecond = callsPerSecond;
+    return this;
+  }
+
+  /**
+   * Retries failed calls with HiveQueen's retry policy, the same way the SDK would. Off by default, so errors reach the
+   * caller directly.
+   */
+  public LocalAws retries(boolean retries) {
+    pipelines.values().forEach(p -> p.retries(retries));
+    return this;
+  }
+
+  public LocalEC2 getEC2() {
+    return ec2;
+  }
+
+  public LocalRoute53 getRoute53() {
+    return route53;
+  }
+
+  public LocalLoadBalancing getLoadBalancing() {
+    return loadBalancing;
+  }
+
+  /**
+   * The number of calls made to each operation, keyed by "service:Operation". Includes calls which failed.
+   */
+  public synchronized Map<String, Integer> getCallCounts() {
+    Map<String, Integer> ret = new TreeMap<>();
+    callCounts.forEach((k, v) -> ret.put(k, v.get()));
+    return ret;
+  }
+
+  public synchronized int getTotalCalls() {
+    return callCounts.values().stream().mapToInt(AtomicInteger::get).sum();
+  }
+
+  public synchronized void resetCallCounts() {
+    callCounts.clear();
+    if (metricsSink instanceof ApiMetrics) {
+      ((ApiMetrics) metricsSink).reset();
+    }
+  }
+
+  Duration getConsistencyDelay() {
+    return consistencyDelay;
+  }
+
+  Duration getPendingDuration() {
+    return pendingDuration;
+  }
+
+  Duration getStopDuration() {
+    return stopDuration;
+  }
+
+  Duration getImageDuration() {
+    return imageDuration;
+  }
+
+  Duration getDnsPropagation() {
+    return dnsPropagation;
+  }
+
+  Duration getHealthyDelay() {
+    return healthyDelay;
+  }
+
+  Duration getDrainDelay() {
+    return drainDelay;
+  }
+
+  /**
+   * Runs a single operation with latency, throttling, call counting and (optionally) retries applied.
+   */
+  <T> T call(String service, String operation, AmazonWebServiceRequest request, Supplier<T> fn) {
+    return pipelines.get(service).call(operation, request, () -> attempt(service, operation, fn));
+  }
+
+  private <T> T attempt(String service, String operation, Supplier<T> fn) {
+    synchronized (this) {
+      callCounts.computeIfAbsent(service + ":" + operation, k -> new AtomicInteger()).incrementAndGet();
+    }
+    if (!latency.isZero()) {
+      sleep(latency.toMillis());
+    }
+    if (isThrottled(service)) {
+      throw error(service, service.equals("ec2") ? "RequestLimitExceeded" : "Throttling", "Rate exceeded", 400);
+    }
+    synchronized (this) {
+      return fn.get();
+    }
+  }
+
+  private synchronized boolean isThrottled(String service) {
+    if (callsPerSecond == Integer.MAX_VALUE) {
+      return false;
+    }
+    Instant now = Instant.now();
+    Deque<Instant> calls = recentCalls.computeIfAbsent(service, k -> new ArrayDeque<>());
+    while (!calls.isEmpty() && calls.peekFirst().isBefore(now.minusSeconds(1))) {
+      calls.removeFirst();
+    }
+    if (calls.size() >= callsPerSecond) {
+      return true;
+    }
+    calls.addLast(now);
+    return false;
+  }
+
+  static AmazonServiceException error(String service, String errorCode, String message, int statusCode) {
+    AmazonServiceException ret = new AmazonServiceException(message);
+    ret.setServiceName(service);
+    ret.setErrorCode(errorCode);
+    ret.setStatusCode(statusCode);
+    ret.setErrorType(statusCode >= 500 ? ErrorType.Service : ErrorType.Client);
+    return ret;
+  }
+
+}
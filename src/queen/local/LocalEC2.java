@@ -0,0 +1,616 @@
+package queen.local;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.ec2.AbstractAmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateImageRequest;
+import com.amazonaws.services.ec2.model.CreateImageResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.CreateTagsResult;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeleteSnapshotResult;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsResult;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageResult;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.amazonaws.services.ec2.model.DescribeVpcsRequest;
+import com.amazonaws.services.ec2.model.DescribeVpcsResult;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.ImageState;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.ModifyInstanceAttributeRequest;
+import com.amazonaws.services.ec2.model.ModifyInstanceAttributeResult;
+import com.amazonaws.services.ec2.model.RebootInstancesRequest;
+import com.amazonaws.services.ec2.model.RebootInstancesResult;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.ResourceType;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StartInstancesResult;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesResult;
+import com.amazonaws.services.ec2.model.Subnet;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.amazonaws.services.ec2.model.Vpc;
+
+import ox.x.XList;
+
+/**
+ * The EC2 half of LocalAws. Only the operations HiveQueen uses are implemented; everything else throws
+ * UnsupportedOperationException.
+ */
+public class LocalEC2 extends AbstractAmazonEC2 {
+
+  private final LocalAws aws;
+
+  private final Map<String, LocalInstance> instances = new LinkedHashMap<>();
+  private final Map<String, LocalImage> images = new LinkedHashMap<>();
+  private final Set<String> snapshots = new LinkedHashSet<>();
+  private final XList<Vpc> vpcs = XList.create();
+  private final XList<Subnet> subnets = XList.create();
+
+  private int idCounter = 0;
+
+  LocalEC2(LocalAws aws) {
+    this.aws = aws;
+
+    vpcs.add(new Vpc().withVpcId("vpc-local").withTags(new Tag("Name", "local")));
+    subnets.add(new Subnet().withSubnetId("subnet-local-a").withVpcId("vpc-local"));
+    subnets.add(new Subnet().withSubnetId("subnet-local-b").withVpcId("vpc-local"));
+  }
+
+  /**
+   * Adds an available image which is immediately visible.
+   */
+  public String addImage(String name) {
+    synchronized (aws) {
+      LocalImage image = new LocalImage(nextId("ami"), name, "", Instant.EPOCH);
+      images.put(image.id, image);
+      return image.id;
+    }
+  }
+
+  /**
+   * Adds a running instance which is immediately visible.
+   */
+  public String addInstance(String name, String type, String imageId) {
+    synchronized (aws) {
+      LocalInstance instance = new LocalInstance(nextId("i"), imageId, type, Instant.EPOCH);
+      instance.state = InstanceStateName.Running.toString();
+      instance.publicIp = nextIp("3.0");
+      instance.tags.put("Name", name);
+      instances.put(instance.id, instance);
+      return instance.id;
+    }
+  }
+
+  /**
+   * Used by the other local services. Doesn't count as a call.
+   */
+  boolean isRunning(String instanceId) {
+    LocalInstance instance = instances.get(instanceId);
+    return instance != null && instance.is(InstanceStateName.Running);
+  }
+
+  @Override
+  public DescribeInstancesResult describeInstances(DescribeInstancesRequest request) {
+    return call("DescribeInstances", request, () -> {
+      if (!request.getInstanceIds().isEmpty() && request.getMaxResults() != null) {
+        throw LocalAws.error("ec2", "InvalidParameterCombination",
+            "The parameter instancesSet cannot be used with the parameter maxResults", 400);
+      }
+
+      XList<LocalInstance> matches = XList.create();
+      if (request.getInstanceIds().isEmpty()) {
+        instances.values().forEach(i -> {
+          if (i.isVisible() && matches(request.getFilters(), i::matches)) {
+            matches.add(i);
+          }
+        });
+      } else {
+        for (String id : request.getInstanceIds()) {
+          LocalInstance i = getInstance(id);
+          if (matches(request.getFilters(), i::matches)) {
+            matches.add(i);
+          }
+        }
+      }
+
+      int start = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+      int end = request.getMaxResults() == null ? matches.size()
+          : Math.min(matches.size(), start + request.getMaxResults());
+
+      DescribeInstancesResult ret = new DescribeInstancesResult();
+      for (LocalInstance i : matches.subList(start, end)) {
+        ret.withReservations(new Reservation().withInstances(i.toInstance()));
+      }
+      if (end < matches.size()) {
+        ret.setNextToken(String.valueOf(end));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public RunInstancesResult runInstances(RunInstancesRequest request) {
+    return call("RunInstances", request, () -> {
+      getImage(request.getImageId());
+
+      Reservation reservation = new Reservation().withReservationId(nextId("r"));
+      for (int n = 0; n < request.getMaxCount(); n++) {
+        LocalInstance instance = new LocalInstance(nextId("i"), request.getImageId(), request.getInstanceType(),
+            Instant.now());
+        instance.transition(InstanceStateName.Pending, InstanceStateName.Running, aws.getPendingDuration());
+        for (TagSpecification spec : request.getTagSpecifications()) {
+          if (ResourceType.Instance.toString().equals(spec.getResourceType())) {
+            spec.getTags().forEach(tag -> instance.tags.put(tag.getKey(), tag.getValue()));
+          }
+        }
+        instances.put(instance.id, instance);
+        reservation.withInstances(instance.toInstance());
+      }
+      return new RunInstancesResult().withReservation(reservation);
+    });
+  }
+
+  @Override
+  public CreateTagsResult createTags(CreateTagsRequest request) {
+    return call("CreateTags", request, () -> {
+      for (String id : request.getResources()) {
+        Map<String, String> tags = getTags(id);
+        request.getTags().forEach(tag -> tags.put(tag.getKey(), tag.getValue()));
+      }
+      return new CreateTagsResult();
+    });
+  }
+
+  @Override
+  public DeleteTagsResult deleteTags(DeleteTagsRequest request) {
+    return call("DeleteTags", request, () -> {
+      for (String id : request.getResources()) {
+        Map<String, String> tags = getTags(id);
+        request.getTags().forEach(tag -> tags.remove(tag.getKey()));
+      }
+      return new DeleteTagsResult();
+    });
+  }
+
+  @Override
+  public StartInstancesResult startInstances(StartInstancesRequest request) {
+    return call("StartInstances", request, () -> {
+      StartInstancesResult ret = new StartInstancesResult();
+      for (String id : request.getInstanceIds()) {
+        LocalInstance instance = getInstance(id);
+        ret.withStartingInstances(instance.change(() -> {
+          if (instance.is(InstanceStateName.Stopped)) {
+            instance.transition(InstanceStateName.Pending, InstanceStateName.Running, aws.getPendingDuration());
+          }
+        }));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public StopInstancesResult stopInstances(StopInstancesRequest request) {
+    return call("StopInstances", request, () -> {
+      StopInstancesResult ret = new StopInstancesResult();
+      for (String id : request.getInstanceIds()) {
+        LocalInstance instance = getInstance(id);
+        ret.withStoppingInstances(instance.change(() -> {
+          if (instance.is(InstanceStateName.Running) || instance.is(InstanceStateName.Pending)) {
+            instance.transition(InstanceStateName.Stopping, InstanceStateName.Stopped, aws.getStopDuration());
+          }
+        }));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public RebootInstancesResult rebootInstances(RebootInstancesRequest request) {
+    return call("RebootInstances", request, () -> {
+      for (String id : request.getInstanceIds()) {
+        LocalInstance instance = getInstance(id);
+        if (instance.is(InstanceStateName.Running)) {
+          instance.transition(InstanceStateName.Pending, InstanceStateName.Running, aws.getPendingDuration());
+        }
+      }
+      return new RebootInstancesResult();
+    });
+  }
+
+  @Override
+  public TerminateInstancesResult terminateInstances(TerminateInstancesRequest request) {
+    return call("TerminateInstances", request, () -> {
+      TerminateInstancesResult ret = new TerminateInstancesResult();
+      for (String id : request.getInstanceIds()) {
+        LocalInstance instance = getInstance(id);
+        ret.withTerminatingInstances(instance.change(() -> {
+          if (!instance.is(InstanceStateName.Terminated)) {
+            instance.transition(InstanceStateName.ShuttingDown, InstanceStateName.Terminated, aws.getStopDuration());
+          }
+        }));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public ModifyInstanceAttributeResult modifyInstanceAttribute(ModifyInstanceAttributeRequest request) {
+    return call("ModifyInstanceAttribute", request, () -> {
+      LocalInstance instance = getInstance(request.getInstanceId());
+      if (request.getInstanceType() != null) {
+        if (!instance.is(InstanceStateName.Stopped)) {
+          throw LocalAws.error("ec2", "IncorrectInstanceState",
+              "The instance '" + instance.id + "' is not in the 'stopped' state.", 400);
+        }
+        instance.type = request.getInstanceType();
+      }
+      return new ModifyInstanceAttributeResult();
+    });
+  }
+
+  @Override
+  public CreateImageResult createImage(CreateImageRequest request) {
+    return call("CreateImage", request, () -> {
+      getInstance(request.getInstanceId());
+      for (LocalImage image : images.values()) {
+        if (image.name.equals(request.getName())) {
+          throw LocalAws.error("ec2", "InvalidAMIName.Duplicate",
+              "AMI name " + request.getName() + " is already in use by AMI " + image.id, 400);
+        }
+      }
+      LocalImage image = new LocalImage(nextId("ami"), request.getName(), request.getInstanceId(), Instant.now());
+      image.snapshotId = nextId("snap");
+      snapshots.add(image.snapshotId);
+      for (TagSpecification spec : request.getTagSpecifications()) {
+        if (ResourceType.Image.toString().equals(spec.getResourceType())) {
+          spec.getTags().forEach(tag -> image.tags.put(tag.getKey(), tag.getValue()));
+        }
+      }
+      images.put(image.id, image);
+      return new CreateImageResult().withImageId(image.id);
+    });
+  }
+
+  @Override
+  public DescribeImagesResult describeImages(DescribeImagesRequest request) {
+    return call("DescribeImages", request, () -> {
+      XList<LocalImage> candidates = XList.create();
+      if (request.getImageIds().isEmpty()) {
+        images.values().forEach(image -> {
+          if (image.isVisible()) {
+            candidates.add(image);
+          }
+        });
+      } else {
+        request.getImageIds().forEach(id -> candidates.add(getImage(id)));
+      }
+
+      DescribeImagesResult ret = new DescribeImagesResult();
+      candidates.forEach(image -> {
+        if (matches(request.getFilters(), image::matches)) {
+          ret.withImages(image.toImage());
+        }
+      });
+      return ret;
+    });
+  }
+
+  @Override
+  public DeregisterImageResult deregisterImage(DeregisterImageRequest request) {
+    return call("DeregisterImage", request, () -> {
+      images.remove(getImage(request.getImageId()).id);
+      return new DeregisterImageResult();
+    });
+  }
+
+  @Override
+  public DeleteSnapshotResult deleteSnapshot(DeleteSnapshotRequest request) {
+    return call("DeleteSnapshot", request, () -> {
+      String snapshotId = request.getSnapshotId();
+      if (!snapshots.contains(snapshotId)) {
+        throw LocalAws.error("ec2", "InvalidSnapshot.NotFound", "The snapshot '" + snapshotId + "' does not exist.",
+            400);
+      }
+      for (LocalImage image : images.values()) {
+        if (snapshotId.equals(image.snapshotId)) {
+          throw LocalAws.error("ec2", "InvalidSnapshot.InUse",
+              "The snapshot " + snapshotId + " is currently in use by " + image.id, 400);
+        }
+      }
+      snapshots.remove(snapshotId);
+      return new DeleteSnapshotResult();
+    });
+  }
+
+  @Override
+  public DescribeVpcsResult describeVpcs(DescribeVpcsRequest request) {
+    return call("DescribeVpcs", request, () -> {
+      return new DescribeVpcsResult().withVpcs(vpcs.filter(vpc -> matches(request.getFilters(), f -> {
+        return f.getName().equals("vpc-id") && matchesAny(f.getValues(), vpc.getVpcId())
+            || f.getName().startsWith("tag:") && matchesAny(f.getValues(), getTag(vpc.getTags(), f.getName()));
+      })));
+    });
+  }
+
+  @Override
+  public DescribeSubnetsResult describeSubnets(DescribeSubnetsRequest request) {
+    return call("DescribeSubnets", request, () -> {
+      return new DescribeSubnetsResult().withSubnets(subnets.filter(subnet -> matches(request.getFilters(), f -> {
+        return f.getName().equals("vpc-id") && matchesAny(f.getValues(), subnet.getVpcId())
+            || f.getName().equals("subnet-id") && matchesAny(f.getValues(), subnet.getSubnetId());
+      })));
+    });
+  }
+
+  private <T> T call(String operation, AmazonWebServiceRequest request, Supplier<T> fn) {
+    return aws.call("ec2", operation, request, fn);
+  }
+
+  private LocalInstance getInstance(String id) {
+    LocalInstance ret = instances.get(id);
+    if (ret == null || !ret.isVisible()) {
+      throw LocalAws.error("ec2", "InvalidInstanceID.NotFound", "The instance ID '" + id + "' does not exist", 400);
+    }
+    return ret;
+  }
+
+  private LocalImage getImage(String id) {
+    LocalImage ret = images.get(id);
+    if (ret == null || !ret.isVisible()) {
+      throw LocalAws.error("ec2", "InvalidAMIID.NotFound", "The image id '[" + id + "]' does not exist", 400);
+    }
+    return ret;
+  }
+
+  private Map<String, String> getTags(String resourceId) {
+    if (resourceId.startsWith("ami-")) {
+      return getImage(resourceId).tags;
+    }
+    return getInstance(resourceId).tags;
+  }
+
+  private String nextId(String prefix) {
+    return String.format("%s-%017x", prefix, ++idCounter);
+  }
+
+  private String nextIp(String prefix) {
+    return prefix + "." + (idCounter / 250) + "." + (idCounter % 250 + 1);
+  }
+
+  private static boolean matches(List<Filter> filters, Predicate<Filter> predicate) {
+    return filters.stream().allMatch(predicate);
+  }
+
+  /**
+   * EC2 filter values support * and ? wildcards.
+   */
+  private static boolean matchesAny(Collection<String> patterns, String value) {
+    if (value == null) {
+      return false;
+    }
+    for (String pattern : patterns) {
+      String regex = Pattern.quote(pattern).replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q");
+      if (value.matches(regex)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getTag(List<Tag> tags, String filterName) {
+    String key = filterName.substring("tag:".length());
+    for (Tag tag : tags) {
+      if (tag.getKey().equals(key)) {
+        return tag.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static XList<Tag> toTags(Map<String, String> tags) {
+    XList<Tag> ret = XList.create();
+    tags.forEach((k, v) -> ret.add(new Tag(k, v)));
+    return ret;
+  }
+
+  private class LocalInstance {
+    private final String id, imageId;
+    private final Instant createdAt;
+    private final Map<String, String> tags = new LinkedHashMap<>();
+    private final String privateIp;
+
+    private String type;
+    private String state;
+    private String nextState = null;
+    private Instant transitionAt = null;
+    private String publicIp = null;
+
+    public LocalInstance(String id, String imageId, String type, Instant createdAt) {
+      this.id = id;
+      this.imageId = imageId;
+      this.type = type;
+      this.createdAt = createdAt;
+      this.privateIp = nextIp("10.0");
+    }
+
+    public boolean isVisible() {
+      return !Instant.now().isBefore(createdAt.plus(aws.getConsistencyDelay()));
+    }
+
+    public void transition(InstanceStateName now, InstanceStateName next, Duration after) {
+      state = now.toString();
+      nextState = next.toString();
+      transitionAt = Instant.now().plus(after);
+    }
+
+    public boolean is(InstanceStateName name) {
+      advance();
+      return state.equals(name.toString());
+    }
+
+    public InstanceStateChange change(Runnable r) {
+      InstanceState previous = getState();
+      r.run();
+      return new InstanceStateChange().withInstanceId(id).withPreviousState(previous).withCurrentState(getState());
+    }
+
+    private void advance() {
+      if (nextState != null && !Instant.now().isBefore(transitionAt)) {
+        state = nextState;
+        nextState = null;
+        if (state.equals(InstanceStateName.Running.toString())) {
+          publicIp = nextIp("3.0");
+        } else if (state.equals(InstanceStateName.Stopped.toString())
+            || state.equals(InstanceStateName.Terminated.toString())) {
+          publicIp = null;
+        }
+      }
+    }
+
+    private InstanceState getState() {
+      advance();
+      int code;
+      switch (InstanceStateName.fromValue(state)) {
+      case Pending:
+        code = 0;
+        break;
+      case Running:
+        code = 16;
+        break;
+      case ShuttingDown:
+        code = 32;
+        break;
+      case Terminated:
+        code = 48;
+        break;
+      case Stopping:
+        code = 64;
+        break;
+      default:
+        code = 80;
+      }
+      return new InstanceState().withName(state).withCode(code);
+    }
+
+    public boolean matches(Filter filter) {
+      advance();
+      String name = filter.getName();
+      if (name.startsWith("tag:")) {
+        return matchesAny(filter.getValues(), tags.get(name.substring("tag:".length())));
+      }
+      switch (name) {
+      case "instance-id":
+        return matchesAny(filter.getValues(), id);
+      case "instance-state-name":
+        return matchesAny(filter.getValues(), state);
+      case "instance-type":
+        return matchesAny(filter.getValues(), type);
+      case "image-id":
+        return matchesAny(filter.getValues(), imageId);
+      case "tag-key":
+        return tags.keySet().stream().anyMatch(k -> matchesAny(filter.getValues(), k));
+      default:
+        throw LocalAws.error("ec2", "InvalidParameterValue", "The filter '" + name + "' is invalid", 400);
+      }
+    }
+
+    public Instance toInstance() {
+      return new Instance()
+          .withInstanceId(id)
+          .withImageId(imageId)
+          .withInstanceType(type)
+          .withState(getState())
+          .withPublicIpAddress(publicIp)
+          .withPrivateIpAddress(privateIp)
+          .withLaunchTime(Date.from(createdAt))
+          .withTags(toTags(tags));
+    }
+  }
+
+  private class LocalImage {
+    private final String id, name, sourceInstanceId;
+    private final Instant createdAt;
+    private final Map<String, String> tags = new LinkedHashMap<>();
+    private String snapshotId = null;
+
+    public LocalImage(String id, String name, String sourceInstanceId, Instant createdAt) {
+      this.id = id;
+      this.name = name;
+      this.sourceInstanceId = sourceInstanceId;
+      this.createdAt = createdAt;
+    }
+
+    public boolean isVisible() {
+      return !Instant.now().isBefore(createdAt.plus(aws.getConsistencyDelay()));
+    }
+
+    public ImageState getState() {
+      return Instant.now().isBefore(createdAt.plus(aws.getImageDuration())) ? ImageState.Pending : ImageState.Available;
+    }
+
+    public boolean matches(Filter filter) {
+      String name = filter.getName();
+      if (name.startsWith("tag:")) {
+        return matchesAny(filter.getValues(), tags.get(name.substring("tag:".length())));
+      }
+      switch (name) {
+      case "name":
+        return matchesAny(filter.getValues(), this.name);
+      case "image-id":
+        return matchesAny(filter.getValues(), id);
+      case "state":
+        return matchesAny(filter.getValues(), getState().toString());
+      default:
+        throw LocalAws.error("ec2", "InvalidParameterValue", "The filter '" + name + "' is invalid", 400);
+      }
+    }
+
+    public Image toImage() {
+      Image ret = new Image()
+          .withImageId(id)
+          .withName(name)
+          .withState(getState().toString())
+          .withCreationDate(createdAt.toString())
+          .withDescription(sourceInstanceId)
+          .withTags(toTags(tags));
+      if (snapshotId != null) {
+        ret.withBlockDeviceMappings(new BlockDeviceMapping()
+            .withDeviceName("/dev/xvda")
+            .withEbs(new EbsBlockDevice().withSnapshotId(snapshotId)));
+      }
+      return ret;
+    }
+  }
+
+}
@@ -0,0 +1,257 @@
+package queen.local;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.elasticloadbalancingv2.AbstractAmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancingv2.model.CreateListenerRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.CreateListenerResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.CreateLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.CreateLoadBalancerResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.CreateTargetGroupRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.CreateTargetGroupResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancer;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealth;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+
+import ox.x.XList;
+
+/**
+ * The ELBv2 half of LocalAws.
+ *
+ * Registered targets report "initial" until the healthy delay has passed and "draining" for the drain delay after
+ * being deregistered. Targets whose instance isn't running report "unhealthy".
+ */
+public class LocalLoadBalancing extends AbstractAmazonElasticLoadBalancing {
+
+  private final LocalAws aws;
+
+  private final Map<String, LoadBalancer> loadBalancers = new LinkedHashMap<>();
+  private final Map<String, TargetGroup> targetGroups = new LinkedHashMap<>();
+  private final Map<String, Map<String, LocalTarget>> targets = new LinkedHashMap<>();
+
+  private int idCounter = 0;
+
+  LocalLoadBalancing(LocalAws aws) {
+    this.aws = aws;
+  }
+
+  /**
+   * Adds a load balancer with a single target group and returns the load balancer's arn.
+   */
+  public String addLoadBalancer(String name) {
+    synchronized (aws) {
+      LoadBalancer lb = createLoadBalancer(name);
+      TargetGroup tg = createTargetGroup(name, "vpc-local");
+      tg.withLoadBalancerArns(lb.getLoadBalancerArn());
+      return lb.getLoadBalancerArn();
+    }
+  }
+
+  /**
+   * Registers targets that are already healthy.
+   */
+  public void addTargets(String loadBalancerArn, XList<String> instanceIds) {
+    synchronized (aws) {
+      for (TargetGroup tg : targetGroups.values()) {
+        if (tg.getLoadBalancerArns().contains(loadBalancerArn)) {
+          instanceIds.forEach(id -> targets.get(tg.getTargetGroupArn()).put(id, new LocalTarget(Instant.EPOCH)));
+        }
+      }
+    }
+  }
+
+  @Override
+  public DescribeLoadBalancersResult describeLoadBalancers(DescribeLoadBalancersRequest request) {
+    return call("DescribeLoadBalancers", request, () -> {
+      XList<LoadBalancer> ret = XList.create();
+      for (LoadBalancer lb : loadBalancers.values()) {
+        if ((request.getNames().isEmpty() || request.getNames().contains(lb.getLoadBalancerName()))
+            && (request.getLoadBalancerArns().isEmpty()
+                || request.getLoadBalancerArns().contains(lb.getLoadBalancerArn()))) {
+          ret.add(lb.clone());
+        }
+      }
+      if (!request.getNames().isEmpty() && ret.size() < request.getNames().size()) {
+        throw LocalAws.error("elasticloadbalancing", "LoadBalancerNotFound",
+            "One or more load balancers not found", 400);
+      }
+      return new DescribeLoadBalancersResult().withLoadBalancers(ret);
+    });
+  }
+
+  @Override
+  public DescribeTargetGroupsResult describeTargetGroups(DescribeTargetGroupsRequest request) {
+    return call("DescribeTargetGroups", request, () -> {
+      XList<TargetGroup> ret = XList.create();
+      for (TargetGroup tg : targetGroups.values()) {
+        if ((request.getNames().isEmpty() || request.getNames().contains(tg.getTargetGroupName()))
+            && (request.getTargetGroupArns().isEmpty()
+                || request.getTargetGroupArns().contains(tg.getTargetGroupArn()))
+            && (request.getLoadBalancerArn() == null
+                || tg.getLoadBalancerArns().contains(request.getLoadBalancerArn()))) {
+          ret.add(tg.clone());
+        }
+      }
+      return new DescribeTargetGroupsResult().withTargetGroups(ret);
+    });
+  }
+
+  @Override
+  public DescribeTargetHealthResult describeTargetHealth(DescribeTargetHealthRequest request) {
+    return call("DescribeTargetHealth", request, () -> {
+      Map<String, LocalTarget> groupTargets = getTargets(request.getTargetGroupArn());
+      groupTargets.values().removeIf(LocalTarget::isGone);
+
+      XList<String> ids = request.getTargets().isEmpty() ? XList.create(groupTargets.keySet())
+          : XList.create(request.getTargets()).map(TargetDescription::getId);
+
+      DescribeTargetHealthResult ret = new DescribeTargetHealthResult();
+      for (String id : ids) {
+        LocalTarget target = groupTargets.get(id);
+        TargetHealthStateEnum state = target == null ? TargetHealthStateEnum.Unused : target.getState(id);
+        ret.withTargetHealthDescriptions(new TargetHealthDescription()
+            .withTarget(new TargetDescription().withId(id).withPort(443))
+            .withTargetHealth(new TargetHealth().withState(state)));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public RegisterTargetsResult registerTargets(RegisterTargetsRequest request) {
+    return call("RegisterTargets", request, () -> {
+      Map<String, LocalTarget> groupTargets = getTargets(request.getTargetGroupArn());
+      for (TargetDescription target : request.getTargets()) {
+        LocalTarget existing = groupTargets.get(target.getId());
+        if (existing == null || existing.deregisteredAt != null) {
+          groupTargets.put(target.getId(), new LocalTarget(Instant.now()));
+        }
+      }
+      return new RegisterTargetsResult();
+    });
+  }
+
+  @Override
+  public DeregisterTargetsResult deregisterTargets(DeregisterTargetsRequest request) {
+    return call("DeregisterTargets", request, () -> {
+      Map<String, LocalTarget> groupTargets = getTargets(request.getTargetGroupArn());
+      for (TargetDescription target : request.getTargets()) {
+        LocalTarget existing = groupTargets.get(target.getId());
+        if (existing != null && existing.deregisteredAt == null) {
+          existing.deregisteredAt = Instant.now();
+        }
+      }
+      return new DeregisterTargetsResult();
+    });
+  }
+
+  @Override
+  public CreateTargetGroupResult createTargetGroup(CreateTargetGroupRequest request) {
+    return call("CreateTargetGroup", request, () -> {
+      return new CreateTargetGroupResult()
+          .withTargetGroups(createTargetGroup(request.getName(), request.getVpcId()).clone());
+    });
+  }
+
+  @Override
+  public CreateLoadBalancerResult createLoadBalancer(CreateLoadBalancerRequest request) {
+    return call("CreateLoadBalancer", request, () -> {
+      return new CreateLoadBalancerResult().withLoadBalancers(createLoadBalancer(request.getName()).clone());
+    });
+  }
+
+  @Override
+  public CreateListenerResult createListener(CreateListenerRequest request) {
+    return call("CreateListener", request, () -> {
+      TargetGroup tg = request.getDefaultActions().stream()
+          .filter(a -> a.getForwardConfig() != null)
+          .flatMap(a -> a.getForwardConfig().getTargetGroups().stream())
+          .map(t -> targetGroups.get(t.getTargetGroupArn()))
+          .findFirst().orElse(null);
+      if (tg != null) {
+        tg.withLoadBalancerArns(request.getLoadBalancerArn());
+      }
+      return new CreateListenerResult();
+    });
+  }
+
+  private LoadBalancer createLoadBalancer(String name) {
+    String arn = "arn:aws:elasticloadbalancing:local:000000000000:loadbalancer/app/" + name + "/" + (++idCounter);
+    LoadBalancer ret = new LoadBalancer()
+        .withLoadBalancerArn(arn)
+        .withLoadBalancerName(name)
+        .withDNSName(name + "-" + idCounter + ".local.elb.amazonaws.com")
+        .withVpcId("vpc-local");
+    loadBalancers.put(arn, ret);
+    return ret;
+  }
+
+  private TargetGroup createTargetGroup(String name, String vpcId) {
+    String arn = "arn:aws:elasticloadbalancing:local:000000000000:targetgroup/" + name + "/" + (++idCounter);
+    TargetGroup ret = new TargetGroup()
+        .withTargetGroupArn(arn)
+        .withTargetGroupName(name)
+        .withVpcId(vpcId)
+        .withPort(443);
+    targetGroups.put(arn, ret);
+    targets.put(arn, new LinkedHashMap<>());
+    return ret;
+  }
+
+  private Map<String, LocalTarget> getTargets(String targetGroupArn) {
+    Map<String, LocalTarget> ret = targets.get(targetGroupArn);
+    if (ret == null) {
+      throw LocalAws.error("elasticloadbalancing", "TargetGroupNotFound",
+          "Target groups '" + targetGroupArn + "' not found", 400);
+    }
+    return ret;
+  }
+
+  private <T> T call(String operation, AmazonWebServiceRequest request, Supplier<T> fn) {
+    return aws.call("elasticloadbalancing", operation, request, fn);
+  }
+
+  private class LocalTarget {
+    private final Instant registeredAt;
+    private Instant deregisteredAt = null;
+
+    public LocalTarget(Instant registeredAt) {
+      this.registeredAt = registeredAt;
+    }
+
+    public boolean isGone() {
+      return deregisteredAt != null && !Instant.now().isBefore(deregisteredAt.plus(aws.getDrainDelay()));
+    }
+
+    public TargetHealthStateEnum getState(String instanceId) {
+      if (deregisteredAt != null) {
+        return TargetHealthStateEnum.Draining;
+      }
+      if (!aws.ec2.isRunning(instanceId)) {
+        return TargetHealthStateEnum.Unhealthy;
+      }
+      if (Instant.now().isBefore(registeredAt.plus(aws.getHealthyDelay()))) {
+        return TargetHealthStateEnum.Initial;
+      }
+      return TargetHealthStateEnum.Healthy;
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+package queen.local;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.route53.AbstractAmazonRoute53;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.ChangeStatus;
+import com.amazonaws.services.route53.model.GetChangeRequest;
+import com.amazonaws.services.route53.model.GetChangeResult;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.HostedZoneConfig;
+import com.amazonaws.services.route53.model.ListHostedZonesRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesResult;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+
+import ox.x.XList;
+
+/**
+ * The Route53 half of LocalAws.
+ */
+public class LocalRoute53 extends AbstractAmazonRoute53 {
+
+  private static final int DEFAULT_MAX_ITEMS = 100;
+
+  private final LocalAws aws;
+
+  private final Map<String, HostedZone> zones = new LinkedHashMap<>();
+  private final Map<String, TreeMap<String, ResourceRecordSet>> records = new LinkedHashMap<>();
+  private final Map<String, Instant> changes = new LinkedHashMap<>();
+
+  private int idCounter = 0;
+
+  LocalRoute53(LocalAws aws) {
+    this.aws = aws;
+  }
+
+  public String addHostedZone(String name) {
+    synchronized (aws) {
+      String id = "/hostedzone/Z" + (++idCounter);
+      zones.put(id, new HostedZone(id, name + ".", "local-" + idCounter)
+          .withConfig(new HostedZoneConfig().withPrivateZone(false)));
+      records.put(id, new TreeMap<>());
+      return id;
+    }
+  }
+
+  @Override
+  public ListHostedZonesResult listHostedZones(ListHostedZonesRequest request) {
+    return call("ListHostedZones", request, () -> {
+      XList<HostedZone> all = XList.create(zones.values());
+      int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+      int maxItems = request.getMaxItems() == null ? DEFAULT_MAX_ITEMS : Integer.parseInt(request.getMaxItems());
+      int end = Math.min(all.size(), start + maxItems);
+
+      ListHostedZonesResult ret = new ListHostedZonesResult()
+          .withHostedZones(all.subList(start, end))
+          .withIsTruncated(end < all.size());
+      if (end < all.size()) {
+        ret.setNextMarker(String.valueOf(end));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public ListHostedZonesResult listHostedZones() {
+    return listHostedZones(new ListHostedZonesRequest());
+  }
+
+  @Override
+  public ChangeResourceRecordSetsResult changeResourceRecordSets(ChangeResourceRecordSetsRequest request) {
+    return call("ChangeResourceRecordSets", request, () -> {
+      TreeMap<String, ResourceRecordSet> zoneRecords = getZoneRecords(request.getHostedZoneId());
+
+      // validate the whole batch before applying any of it, like Route53 does
+      TreeMap<String, ResourceRecordSet> updated = new TreeMap<>(zoneRecords);
+      for (Change change : request.getChangeBatch().getChanges()) {
+        ResourceRecordSet record = change.getResourceRecordSet();
+        String key = key(record.getName(), record.getType());
+        ChangeAction action = ChangeAction.fromValue(change.getAction());
+        if (action == ChangeAction.DELETE) {
+          if (updated.remove(key) == null) {
+            throw LocalAws.error("route53", "InvalidChangeBatch",
+                "Tried to delete resource record set [name='" + record.getName() + "', type='" + record.getType()
+                    + "'] but it was not found",
+                400);
+          }
+        } else if (action == ChangeAction.CREATE && updated.containsKey(key)) {
+          throw LocalAws.error("route53", "InvalidChangeBatch", "Tried to create resource record set [name='"
+              + record.getName() + "', type='" + record.getType() + "'] but it already exists", 400);
+        } else {
+          updated.put(key, record.clone().withName(normalize(record.getName())));
+        }
+      }
+      zoneRecords.clear();
+      zoneRecords.putAll(updated);
+
+      String changeId = "/change/C" + (++idCounter);
+      changes.put(changeId, Instant.now().plus(aws.getDnsPropagation()));
+      return new ChangeResourceRecordSetsResult().withChangeInfo(getChangeInfo(changeId));
+    });
+  }
+
+  @Override
+  public GetChangeResult getChange(GetChangeRequest request) {
+    return call("GetChange", request, () -> {
+      String id = request.getId().startsWith("/change/") ? request.getId() : "/change/" + request.getId();
+      if (!changes.containsKey(id)) {
+        throw LocalAws.error("route53", "NoSuchChange", "Could not find resource with ID: " + request.getId(), 404);
+      }
+      return new GetChangeResult().withChangeInfo(getChangeInfo(id));
+    });
+  }
+
+  @Override
+  public ListResourceRecordSetsResult listResourceRecordSets(ListResourceRecordSetsRequest request) {
+    return call("ListResourceRecordSets", request, () -> {
+      TreeMap<String, ResourceRecordSet> zoneRecords = getZoneRecords(request.getHostedZoneId());
+      int maxItems = request.getMaxItems() == null ? DEFAULT_MAX_ITEMS : Integer.parseInt(request.getMaxItems());
+
+      XList<ResourceRecordSet> page = XList.create();
+      Map<String, ResourceRecordSet> tail = request.getStartRecordName() == null ? zoneRecords
+          : zoneRecords.tailMap(key(request.getStartRecordName(),
+              request.getStartRecordType() == null ? "" : request.getStartRecordType()), true);
+      ListResourceRecordSetsResult ret = new ListResourceRecordSetsResult().withIsTruncated(false);
+      for (ResourceRecordSet record : tail.values()) {
+        if (page.size() == maxItems) {
+          ret.withIsTruncated(true).withNextRecordName(record.getName()).withNextRecordType(record.getType());
+          break;
+        }
+        page.add(record.clone());
+      }
+      return ret.withResourceRecordSets(page).withMaxItems(String.valueOf(maxItems));
+    });
+  }
+
+  private ChangeInfo getChangeInfo(String changeId) {
+    boolean inSync = !Instant.now().isBefore(changes.get(changeId));
+    return new ChangeInfo(changeId, inSync ? ChangeStatus.INSYNC : ChangeStatus.PENDING, new Date());
+  }
+
+  private TreeMap<String, ResourceRecordSet> getZoneRecords(String zoneId) {
+    String id = zoneId.startsWith("/hostedzone/") ? zoneId : "/hostedzone/" + zoneId;
+    TreeMap<String, ResourceRecordSet> ret = records.get(id);
+    if (ret == null) {
+      throw LocalAws.error("route53", "NoSuchHostedZone", "No hosted zone found with ID: " + zoneId, 404);
+    }
+    return ret;
+  }
+
+  private <T> T call(String operation, AmazonWebServiceRequest request, Supplier<T> fn) {
+    return aws.call("route53", operation, request, fn);
+  }
+
+  /**
+   * Route53 returns fully qualified names.
+   */
+  private static String normalize(String name) {
+    String ret = name.toLowerCase();
+    return ret.endsWith(".") ? ret : ret + ".";
+  }
+
+  private static String key(String name, String type) {
+    return normalize(name) + " " + type;
+  }
+
+}